@@ -0,0 +1,136 @@
+package com.intellij.vcs.starteam;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Map from paths to values kept sorted by path, which makes containment
+ * queries cheap: the nearest mapped ancestor of a path is found with one
+ * probe per path segment instead of a scan over all the keys. Paths are
+ * compared on segment boundaries, so "/a/foo" is never taken for an
+ * ancestor of "/a/foobar".
+ * Keys are accepted with either separator and reported as they were put.
+ */
+public class PathPrefixMap<V>
+{
+  private static final char SEP = '/';
+
+  private final boolean myCaseSensitive;
+  private final TreeMap<String, Entry<V>> myEntries = new TreeMap<String, Entry<V>>();
+
+  public PathPrefixMap( boolean caseSensitive )
+  {
+    myCaseSensitive = caseSensitive;
+  }
+
+  public PathPrefixMap( PathPrefixMap<V> other )
+  {
+    myCaseSensitive = other.myCaseSensitive;
+    myEntries.putAll( other.myEntries );
+  }
+
+  @Nullable
+  public V get( String path )
+  {
+    Entry<V> entry = myEntries.get( key( path ) );
+    return (entry != null) ? entry.value : null;
+  }
+
+  public boolean containsKey( String path )  {  return myEntries.containsKey( key( path ) );  }
+
+  @Nullable
+  public V put( String path, V value )
+  {
+    Entry<V> old = myEntries.put( key( path ), new Entry<V>( path, value ) );
+    return (old != null) ? old.value : null;
+  }
+
+  @Nullable
+  public V remove( String path )
+  {
+    Entry<V> old = myEntries.remove( key( path ) );
+    return (old != null) ? old.value : null;
+  }
+
+  public int     size()     {  return myEntries.size();  }
+  public boolean isEmpty()  {  return myEntries.isEmpty();  }
+  public void    clear()    {  myEntries.clear();  }
+
+  public Set<String> keySet()
+  {
+    Set<String> keys = new LinkedHashSet<String>();
+    for( Entry<V> entry : myEntries.values() )
+      keys.add( entry.path );
+    return keys;
+  }
+
+  public Collection<V> values()
+  {
+    List<V> values = new ArrayList<V>( myEntries.size() );
+    for( Entry<V> entry : myEntries.values() )
+      values.add( entry.value );
+    return values;
+  }
+
+  /**
+   * @param strict whether the path itself is excluded from the search
+   * @return the path of the nearest mapped ancestor of the given path, or
+   *         <code>null</code> if there is none.
+   */
+  @Nullable
+  public String findAncestor( String path, boolean strict )
+  {
+    String key = key( path );
+    if( !strict && myEntries.containsKey( key ) )
+      return myEntries.get( key ).path;
+
+    for( int index = key.lastIndexOf( SEP ); index >= 0; index = key.lastIndexOf( SEP, index - 1 ) )
+    {
+      Entry<V> entry = myEntries.get( (index == 0) ? String.valueOf( SEP ) : key.substring( 0, index ) );
+      if( entry != null )
+        return entry.path;
+      if( index == 0 )
+        break;
+    }
+    return null;
+  }
+
+  public boolean hasAncestor( String path, boolean strict )  {  return findAncestor( path, strict ) != null;  }
+
+  /**
+   * Removes all the keys lying below the path (the path itself is kept).
+   */
+  public void removeDescendants( String path )
+  {
+    String key = key( path );
+
+    //  All the descendants sort between "path/" and "path0".
+    myEntries.subMap( key + SEP, key + (char)(SEP + 1) ).clear();
+  }
+
+  private String key( String path )
+  {
+    path = path.replace( java.io.File.separatorChar, SEP );
+    if( path.length() > 1 && path.charAt( path.length() - 1 ) == SEP )
+      path = path.substring( 0, path.length() - 1 );
+    return myCaseSensitive ? path : path.toLowerCase();
+  }
+
+  private static class Entry<V>
+  {
+    private final String path;
+    private final V value;
+
+    private Entry( String path, V value )
+    {
+      this.path = path;
+      this.value = value;
+    }
+  }
+}
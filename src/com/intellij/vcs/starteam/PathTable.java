@@ -0,0 +1,206 @@
+package com.intellij.vcs.starteam;
+
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectIntHashMap;
+
+/**
+ * Interned representation of the paths the plugin keeps track of. Every path
+ * is given an int ID made of the ID of its parent and the ID of its last name
+ * segment, so a path costs two ints no matter how long it is, and each name
+ * is stored once for the whole working copy. The long-lived collections built
+ * on top of the table - the status table, the view index and the new files of
+ * the pending changes - keep IDs in primitive sets and maps instead of path
+ * strings.
+ * <p/>
+ * For case-insensitive file systems names differing in the letter case only
+ * are interned as one, and the path is reported in the case it was last
+ * interned with, so that an item renamed in the letter case only is reported
+ * under its new name. IDs are never reused; to keep the table from growing
+ * with every path the status passes come across, only the items the plugin
+ * keeps track of are interned (files with a recorded status, files scheduled
+ * for addition and the folders of the view index), everything else is only
+ * looked up with {@link #find}.
+ */
+public class PathTable
+{
+  public static final int NONE = 0;
+
+  private static final char SEP = '/';
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final boolean myCaseSensitive;
+
+  //  Name segments: ID by the (case normalized) name and the name by ID.
+  private final TObjectIntHashMap<String> myNameIds = new TObjectIntHashMap<String>();
+  private String[] myNames = new String[ INITIAL_CAPACITY ];
+  private int myNameCount = 1;
+
+  //  Paths: ID by the pair (parent ID, name ID) and the pair by ID.
+  private final TLongIntHashMap myChildren = new TLongIntHashMap();
+  private int[] myParents = new int[ INITIAL_CAPACITY ];
+  private int[] myNameOf = new int[ INITIAL_CAPACITY ];
+  private int myCount = 1;
+
+  //  Paths whose last segment was last interned spelled differently from
+  //  the interned name, case-insensitive tables only.
+  private final TIntObjectHashMap<String> mySpellings = new TIntObjectHashMap<String>();
+
+  public PathTable( boolean caseSensitive )
+  {
+    myCaseSensitive = caseSensitive;
+  }
+
+  public synchronized int intern( String path )
+  {
+    int id = NONE;
+    String normalized = normalize( path );
+    int start = 0;
+    while( true )
+    {
+      int end = normalized.indexOf( SEP, start );
+      String name = (end < 0) ? normalized.substring( start ) : normalized.substring( start, end );
+      int nameId = internName( name );
+      id = child( id, nameId );
+      if( !myCaseSensitive )
+      {
+        if( name.equals( myNames[ nameId ] ) )
+          mySpellings.remove( id );
+        else
+          mySpellings.put( id, name );
+      }
+      if( end < 0 )
+        return id;
+      start = end + 1;
+    }
+  }
+
+  /**
+   * @return ID of the path or {@link #NONE} if the path was never interned.
+   */
+  public synchronized int find( String path )
+  {
+    int id = NONE;
+    String normalized = normalize( path );
+    int start = 0;
+    while( true )
+    {
+      int end = normalized.indexOf( SEP, start );
+      String name = (end < 0) ? normalized.substring( start ) : normalized.substring( start, end );
+      int nameId = myNameIds.get( nameKey( name ) );
+      if( nameId == NONE )
+        return NONE;
+      id = myChildren.get( pair( id, nameId ) );
+      if( id == NONE || end < 0 )
+        return id;
+      start = end + 1;
+    }
+  }
+
+  public synchronized String getPath( int id )
+  {
+    int depth = 0;
+    for( int i = id; i != NONE; i = myParents[ i ] )
+      depth++;
+
+    String[] segments = new String[ depth ];
+    for( int i = id; i != NONE; i = myParents[ i ] )
+    {
+      String spelling = mySpellings.get( i );
+      segments[ --depth ] = (spelling != null) ? spelling : myNames[ myNameOf[ i ] ];
+    }
+
+    StringBuilder buf = new StringBuilder();
+    for( int i = 0; i < segments.length; i++ )
+    {
+      if( i > 0 )
+        buf.append( SEP );
+      buf.append( segments[ i ] );
+    }
+    return buf.toString();
+  }
+
+  public synchronized int getParent( int id )  {  return myParents[ id ];  }
+  public synchronized int getNameId( int id )  {  return myNameOf[ id ];   }
+
+  /**
+   * @return whether <code>ancestor</code> lies strictly above <code>id</code>.
+   */
+  public synchronized boolean isAncestor( int ancestor, int id )
+  {
+    for( int i = myParents[ id ]; i != NONE; i = myParents[ i ] )
+    {
+      if( i == ancestor )
+        return true;
+    }
+    return false;
+  }
+
+  public synchronized int internName( String name )
+  {
+    String key = nameKey( name );
+    int nameId = myNameIds.get( key );
+    if( nameId == NONE )
+    {
+      if( myNameCount == myNames.length )
+      {
+        String[] names = new String[ myNames.length * 2 ];
+        System.arraycopy( myNames, 0, names, 0, myNameCount );
+        myNames = names;
+      }
+      nameId = myNameCount++;
+      myNames[ nameId ] = name;
+      myNameIds.put( key, nameId );
+    }
+    return nameId;
+  }
+
+  /**
+   * @return ID of the name segment or {@link #NONE} if it was never interned.
+   */
+  public synchronized int findName( String name )
+  {
+    return myNameIds.get( nameKey( name ) );
+  }
+
+  private int child( int parent, int nameId )
+  {
+    long key = pair( parent, nameId );
+    int id = myChildren.get( key );
+    if( id == NONE )
+    {
+      if( myCount == myParents.length )
+      {
+        int[] parents = new int[ myParents.length * 2 ];
+        int[] nameOf = new int[ myParents.length * 2 ];
+        System.arraycopy( myParents, 0, parents, 0, myCount );
+        System.arraycopy( myNameOf, 0, nameOf, 0, myCount );
+        myParents = parents;
+        myNameOf = nameOf;
+      }
+      id = myCount++;
+      myParents[ id ] = parent;
+      myNameOf[ id ] = nameId;
+      myChildren.put( key, id );
+    }
+    return id;
+  }
+
+  private static long pair( int parent, int nameId )
+  {
+    return ((long)parent << 32) | (nameId & 0xFFFFFFFFL);
+  }
+
+  private String nameKey( String name )
+  {
+    return myCaseSensitive ? name : name.toLowerCase();
+  }
+
+  private static String normalize( String path )
+  {
+    path = path.replace( java.io.File.separatorChar, SEP );
+    if( path.length() > 1 && path.charAt( path.length() - 1 ) == SEP )
+      path = path.substring( 0, path.length() - 1 );
+    return path;
+  }
+}
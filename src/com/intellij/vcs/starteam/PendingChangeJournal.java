@@ -0,0 +1,333 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Binary append-only journal of the mutations of a {@link PendingChangeStore}.
+ * Every mutation is appended (and flushed to the OS) as it happens, so the
+ * pending changes survive an IDE crash between workspace saves. Once the
+ * journal grows well beyond the live state it is compacted in the background:
+ * rewritten as the minimal list of records recreating the current store.
+ * Every journal starts with a clear, so replaying it recreates the store as
+ * it was at the last record, whatever the store held before - a compaction
+ * forgets the changes dropped since, and they must not come back from the
+ * workspace file.
+ * <p/>
+ * At activation the journal is replayed into the store and the result is
+ * checked against the file system - one directory listing per folder instead
+ * of one <code>exists</code> call per path - since files can be added back or
+ * deleted between IDE sessions.
+ */
+class PendingChangeJournal
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.PendingChangeJournal");
+
+  private static final int MAGIC = 0x53544a31;
+  private static final int MIN_COMPACTION_RECORDS = 1000;
+
+  private static final byte ADD_NEW = 1;
+  private static final byte REMOVE_NEW = 2;
+  private static final byte REMOVED_FILE = 3;
+  private static final byte REMOVED_FOLDER = 4;
+  private static final byte UNREMOVE = 5;
+  private static final byte RENAME = 6;
+  private static final byte PUT_RENAMED = 7;
+  private static final byte REMOVE_RENAMED = 8;
+  private static final byte FORGET_RENAMED_FROM = 9;
+  private static final byte CLEAR = 10;
+
+  private final java.io.File myFile;
+  private final PendingChangeStore myStore;
+  private final AtomicBoolean myCompactionScheduled = new AtomicBoolean();
+
+  private DataOutputStream myOut;
+  private int myRecords;
+  private int myLiveRecords;
+
+  PendingChangeJournal( java.io.File file, PendingChangeStore store )
+  {
+    myFile = file;
+    myStore = store;
+  }
+
+  /**
+   * Applies the recorded mutations to the store and drops the pending changes
+   * the file system contradicts. A damaged tail (e.g. after a crash in the
+   * middle of a record) is ignored. The store must not be journaled yet.
+   */
+  public void replay()
+  {
+    if( myFile.exists() )
+    {
+      DataInputStream in = null;
+      try
+      {
+        in = new DataInputStream( new BufferedInputStream( new FileInputStream( myFile ) ) );
+        if( in.readInt() != MAGIC )
+          LOG.info( "unknown journal format, ignored: " + myFile );
+        else
+          while( true )
+            apply( in.readByte(), in.readBoolean(), in );
+      }
+      catch( EOFException e )
+      {
+        //  The end of the journal, or its incomplete last record.
+      }
+      catch( IOException e )
+      {
+        LOG.info( e );
+      }
+      finally
+      {
+        close( in );
+      }
+    }
+    verify( myStore );
+  }
+
+  private void apply( byte op, boolean isDir, DataInputStream in ) throws IOException
+  {
+    switch( op )
+    {
+      case ADD_NEW:             myStore.addNewFile( in.readUTF() );  break;
+      case REMOVE_NEW:          myStore.removeNewFile( in.readUTF() );  break;
+      case REMOVED_FILE:        myStore.addRemovedFile( in.readUTF() );  break;
+      case REMOVED_FOLDER:      myStore.addRemovedFolder( in.readUTF() );  break;
+      case UNREMOVE:            myStore.unremove( in.readUTF() );  break;
+      case RENAME:              myStore.rename( isDir, in.readUTF(), in.readUTF() );  break;
+      case PUT_RENAMED:         myStore.putRenamed( isDir, in.readUTF(), in.readUTF() );  break;
+      case REMOVE_RENAMED:      myStore.removeRenamed( isDir, in.readUTF() );  break;
+      case FORGET_RENAMED_FROM: myStore.forgetRenamedFrom( isDir, in.readUTF() );  break;
+      case CLEAR:               myStore.clear();  break;
+      default:
+        throw new IOException( "unknown journal record: " + op );
+    }
+  }
+
+  //---------------------------------------------------------------------------
+  //  Writing
+  //---------------------------------------------------------------------------
+  public void addNewFile( String path )      {  append( ADD_NEW, false, path, null );  }
+  public void removeNewFile( String path )   {  append( REMOVE_NEW, false, path, null );  }
+  public void addRemovedFile( String path )  {  append( REMOVED_FILE, false, path, null );  }
+  public void addRemovedFolder( String path ){  append( REMOVED_FOLDER, false, path, null );  }
+  public void unremove( String path )        {  append( UNREMOVE, false, path, null );  }
+  public void clear()                        {  append( CLEAR, false, null, null );  }
+
+  public void rename( boolean isDir, String currentName, String newName )  {  append( RENAME, isDir, currentName, newName );  }
+  public void putRenamed( boolean isDir, String newName, String oldName )  {  append( PUT_RENAMED, isDir, newName, oldName );  }
+  public void removeRenamed( boolean isDir, String newName )               {  append( REMOVE_RENAMED, isDir, newName, null );  }
+  public void forgetRenamedFrom( boolean isDir, String oldName )           {  append( FORGET_RENAMED_FROM, isDir, oldName, null );  }
+
+  private void append( byte op, boolean isDir, @Nullable String first, @Nullable String second )
+  {
+    synchronized( this )
+    {
+      if( myOut == null )
+        return;
+
+      try
+      {
+        write( myOut, op, isDir, first, second );
+        myOut.flush();
+        myRecords++;
+      }
+      catch( IOException e )
+      {
+        //  Keep going without the journal, the workspace file is the backup.
+        LOG.warn( "pending changes are not journaled any more: " + myFile, e );
+        close( myOut );
+        myOut = null;
+        return;
+      }
+
+      if( myRecords < Math.max( MIN_COMPACTION_RECORDS, 4 * myLiveRecords ) )
+        return;
+    }
+
+    if( myCompactionScheduled.compareAndSet( false, true ) )
+    {
+      ApplicationManager.getApplication().executeOnPooledThread( new Runnable()
+      {
+        public void run()
+        {
+          myCompactionScheduled.set( false );
+          myStore.compactJournal();
+        }
+      });
+    }
+  }
+
+  private static void write( DataOutputStream out, byte op, boolean isDir, @Nullable String first,
+                             @Nullable String second ) throws IOException
+  {
+    out.writeByte( op );
+    out.writeBoolean( isDir );
+    if( first != null )
+      out.writeUTF( first );
+    if( second != null )
+      out.writeUTF( second );
+  }
+
+  /**
+   * Replaces the journal with the records recreating the snapshot and keeps
+   * appending after them. The records follow a clear, the journal replaces
+   * the state restored from the workspace file instead of adding to it.
+   * Called by the store with all its locks held.
+   */
+  public synchronized void rewrite( PendingChangeStore.Snapshot snapshot ) throws IOException
+  {
+    close( myOut );
+    myOut = null;
+
+    java.io.File tmp = new java.io.File( myFile.getPath() + ".tmp" );
+    myFile.getParentFile().mkdirs();
+    DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+    int records = 0;
+    try
+    {
+      out.writeInt( MAGIC );
+      write( out, CLEAR, false, null, null );
+      for( String path : snapshot.getNewFiles() )        {  write( out, ADD_NEW, false, path, null );  records++;  }
+      for( String path : snapshot.getRemovedFolders() )  {  write( out, REMOVED_FOLDER, false, path, null );  records++;  }
+      for( String path : snapshot.getRemovedFiles() )    {  write( out, REMOVED_FILE, false, path, null );  records++;  }
+      records += writeRenamed( out, false, snapshot.getRenamedFiles() );
+      records += writeRenamed( out, true, snapshot.getRenamedDirs() );
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if( !myFile.delete() && myFile.exists() || !tmp.renameTo( myFile ) )
+      throw new IOException( "can not replace the journal: " + myFile );
+
+    myOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( myFile, true ) ) );
+    myRecords = myLiveRecords = records;
+  }
+
+  private static int writeRenamed( DataOutputStream out, boolean isDir, Map<String, String> renamed ) throws IOException
+  {
+    for( Map.Entry<String, String> e : renamed.entrySet() )
+      write( out, PUT_RENAMED, isDir, e.getKey(), e.getValue() );
+    return renamed.size();
+  }
+
+  public synchronized void close()
+  {
+    close( myOut );
+    myOut = null;
+  }
+
+  private static void close( @Nullable java.io.Closeable stream )
+  {
+    if( stream != null )
+    {
+      try {  stream.close();  }
+      catch( IOException e ) {  LOG.debug( e );  }
+    }
+  }
+
+  //---------------------------------------------------------------------------
+  //  Verification against the file system
+  //---------------------------------------------------------------------------
+
+  /**
+   * Drops new and renamed files which are gone from the disk, and removed
+   * items which are back on it.
+   */
+  public static void verify( PendingChangeStore store )
+  {
+    PendingChangeStore.Snapshot pending = store.snapshot();
+    DirectoryListings listings = new DirectoryListings();
+
+    for( String path : pending.getNewFiles() )
+    {
+      if( !listings.exists( path ) )
+        store.removeNewFile( path );
+    }
+    for( String path : pending.getRemovedFiles() )
+    {
+      if( listings.exists( path ) )
+        store.unremove( path );
+    }
+    for( String path : pending.getRemovedFolders() )
+    {
+      if( listings.exists( path ) )
+        store.unremove( path );
+    }
+    for( String path : pending.getRenamedFiles().keySet() )
+    {
+      if( !listings.exists( path ) )
+        store.removeRenamed( false, path );
+    }
+    for( String path : pending.getRenamedDirs().keySet() )
+    {
+      if( !listings.exists( path ) )
+        store.removeRenamed( true, path );
+    }
+  }
+
+  /**
+   * Names in the directories asked about, each directory listed once.
+   */
+  private static class DirectoryListings
+  {
+    private final Map<String, Set<String>> myListings = new HashMap<String, Set<String>>();
+
+    boolean exists( String path )
+    {
+      java.io.File file = new java.io.File( path );
+      String parent = file.getParent();
+      return parent != null && names( parent ).contains( key( file.getName() ) );
+    }
+
+    private Set<String> names( String dir )
+    {
+      Set<String> names = myListings.get( dir );
+      if( names == null )
+      {
+        String[] list = new java.io.File( dir ).list();
+        if( list == null )
+          names = Collections.emptySet();
+        else
+        {
+          names = new HashSet<String>( list.length );
+          addAll( names, list );
+        }
+        myListings.put( dir, names );
+      }
+      return names;
+    }
+
+    private static void addAll( Collection<String> names, String[] list )
+    {
+      for( String name : list )
+        names.add( key( name ) );
+    }
+
+    private static String key( String name )
+    {
+      return SystemInfo.isFileSystemCaseSensitive ? name : name.toLowerCase();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
+import com.intellij.vcsUtil.VcsUtil;
+import com.starbase.starteam.vts.comm.CommandException;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the renames and removals reported by the VFS listener, but only
+ * for items which are versioned. Whenever the {@link StarteamViewIndex}
+ * knows the answer the change is recorded at once; for items in folders the
+ * index has not listed yet the server is asked in the background, so that
+ * nothing blocks the write action, and the change is recorded (and the path
+ * marked dirty) once the answer comes.
+ * <p/>
+ * Changes are applied in the order they were submitted: while anything is
+ * waiting for the server, later changes wait behind it, so that a chain of
+ * renames of one item is not broken up.
+ */
+class PendingChangeReconciler
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.PendingChangeReconciler");
+
+  private final StarteamVcs host;
+  private final Queue<Change> myChanges = new ConcurrentLinkedQueue<Change>();
+  //  Changes submitted but not applied yet, including the one being resolved.
+  private final AtomicInteger myInFlight = new AtomicInteger();
+  private final AtomicBoolean myScheduled = new AtomicBoolean();
+
+  PendingChangeReconciler( StarteamVcs host )
+  {
+    this.host = host;
+  }
+
+  /**
+   * Called from the event thread, as the VFS events are.
+   */
+  public void renamed( boolean isDir, String oldName, String newName )
+  {
+    submit( new Change( isDir, oldName, newName ) );
+  }
+
+  public void removed( boolean isDir, String path )
+  {
+    submit( new Change( isDir, path, null ) );
+  }
+
+  private void submit( Change change )
+  {
+    //  Nothing is waiting and the answer is known locally - no need to queue.
+    if( myInFlight.get() == 0 && applyLocally( change ) )
+      return;
+
+    myInFlight.incrementAndGet();
+    myChanges.add( change );
+    schedule();
+  }
+
+  private void schedule()
+  {
+    if( myScheduled.compareAndSet( false, true ) )
+    {
+      ApplicationManager.getApplication().executeOnPooledThread( new Runnable() {
+        public void run()
+        {
+          try {  drain();  }
+          finally
+          {
+            myScheduled.set( false );
+            //  Changes added after the last poll but before the flag was reset.
+            if( !myChanges.isEmpty() )
+              schedule();
+          }
+        }
+      });
+    }
+  }
+
+  private void drain()
+  {
+    List<String> dirty = new ArrayList<String>();
+    Change change;
+    while( (change = myChanges.peek()) != null )
+    {
+      if( host.getProject().isDisposed() )
+      {
+        myChanges.clear();
+        myInFlight.set( 0 );
+        return;
+      }
+
+      try
+      {
+        if( !applyLocally( change ) && isVersioned( change ) )
+          apply( change );
+        dirty.add( change.newName != null ? change.newName : change.path );
+      }
+      finally
+      {
+        //  Leave it at the head of the queue until applied, so that the
+        //  event thread sees it in flight.
+        myChanges.poll();
+        myInFlight.decrementAndGet();
+      }
+    }
+
+    if( dirty.isEmpty() || host.getProject().isDisposed() )
+      return;
+
+    VcsDirtyScopeManager mgr = VcsDirtyScopeManager.getInstance( host.getProject() );
+    for( String path : dirty )
+      mgr.fileDirty( VcsUtil.getFilePath( path ) );
+  }
+
+  /**
+   * @return whether the change is settled without asking the server: the
+   *         item was renamed before, or the index knows whether it is
+   *         versioned.
+   */
+  private boolean applyLocally( Change change )
+  {
+    PendingChangeStore pending = host.getPendingChanges();
+    if( change.newName != null && pending.renameIfRenamed( change.isDir, change.path, change.newName ) )
+      return true;
+
+    Boolean known = host.getViewIndex().contains( change.isDir, change.path );
+    if( known == null )
+      return false;
+
+    if( known )
+      apply( change );
+    return true;
+  }
+
+  private void apply( Change change )
+  {
+    PendingChangeStore pending = host.getPendingChanges();
+    if( change.newName != null )
+    {
+      pending.rename( change.isDir, change.path, change.newName );
+      return;
+    }
+
+    //  Created again while the removal was waiting.
+    if( new java.io.File( change.path ).exists() )
+      return;
+
+    if( change.isDir )
+      pending.addRemovedFolder( change.path );
+    else
+      pending.addRemovedFile( change.path );
+  }
+
+  /**
+   * We can catch CommandException when the connection is broken. Record the
+   * change in this case, it is cheaper to fail the commit than to lose
+   * the change.
+   */
+  private boolean isVersioned( Change change )
+  {
+    try
+    {
+      return change.isDir ? host.existsFolder( change.path ) : host.existsFile( change.path );
+    }
+    catch( CommandException e )
+    {
+      LOG.debug( e );
+      return true;
+    }
+  }
+
+  private static class Change
+  {
+    private final boolean isDir;
+    private final String path;
+    private final String newName;
+
+    /**
+     * @param newName the name the item was renamed to, <code>null</code> for removals
+     */
+    private Change( boolean isDir, String path, @Nullable String newName )
+    {
+      this.isDir = isDir;
+      this.path = path;
+      this.newName = newName;
+    }
+  }
+}
@@ -0,0 +1,431 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local changes which are not yet known to the StarTeam server: files scheduled
+ * for addition, locally removed files and folders, renamed/moved files and
+ * renamed folders.
+ * <p/>
+ * The store is written from the VFS listener (on the EDT) and from the checkin
+ * and rollback environments, while the change provider reads it on its own
+ * thread. Each kind of change is guarded by a lock of its own, so writers of
+ * different kinds never contend and point queries lock only the part they
+ * read. Readers which need several answers that agree with each other take a
+ * {@link Snapshot}, which acquires all the locks (always in the same order)
+ * for the duration of the copy. The snapshot is kept until the next mutation,
+ * so the status passes of an idle store do not copy it over and over.
+ * <p/>
+ * Once a {@link PendingChangeJournal} is attached, every mutation is appended
+ * to it under the lock of its kind, so the journal keeps the order in which
+ * the mutations of each kind were applied.
+ */
+public class PendingChangeStore
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.PendingChangeStore");
+
+  private final Object myNewLock = new Object();
+  private final Object myRemovedLock = new Object();
+  private final Object myRenamedLock = new Object();
+
+  private final PathTable myPaths;
+  private volatile PendingChangeJournal myJournal;
+
+  //  New files are kept as path IDs, the table takes care of the letter
+  //  case of paths coming from different sources.
+  private final TIntHashSet   myNewFiles = new TIntHashSet();
+  private final SortedPathSet myRemovedFiles = new SortedPathSet();
+  private final SortedPathSet myRemovedFolders = new SortedPathSet();
+
+  //  Rename chains may differ in the letter case only, keep the keys exact.
+  private final PathPrefixMap<String> myRenamedFiles = new PathPrefixMap<String>( true );
+  private final PathPrefixMap<String> myRenamedDirs = new PathPrefixMap<String>( true );
+  //  The same records the other way round, original name to the current one.
+  private final Map<String, String> myRenamedFilesFrom = new HashMap<String, String>();
+  private final Map<String, String> myRenamedDirsFrom = new HashMap<String, String>();
+
+  //  Dropped by every mutation, under the lock of its kind.
+  private volatile Snapshot mySnapshot;
+
+  public PendingChangeStore( PathTable paths )
+  {
+    myPaths = paths;
+  }
+
+  //---------------------------------------------------------------------------
+  //  New files
+  //---------------------------------------------------------------------------
+  public void addNewFile( String path )
+  {
+    int id = myPaths.intern( path );
+    synchronized( myNewLock )
+    {
+      mySnapshot = null;
+      if( myNewFiles.add( id ) && myJournal != null )
+        myJournal.addNewFile( path );
+    }
+  }
+
+  public void removeNewFile( String path )
+  {
+    int id = myPaths.find( path );
+    if( id != PathTable.NONE )
+    {
+      synchronized( myNewLock )
+      {
+        mySnapshot = null;
+        if( myNewFiles.remove( id ) && myJournal != null )
+          myJournal.removeNewFile( path );
+      }
+    }
+  }
+
+  public boolean isNewFile( String path )
+  {
+    int id = myPaths.find( path );
+    if( id == PathTable.NONE )
+      return false;
+    synchronized( myNewLock ) {  return myNewFiles.contains( id );  }
+  }
+
+  //---------------------------------------------------------------------------
+  //  Removed files and folders
+  //---------------------------------------------------------------------------
+  public void addRemovedFile( String path )
+  {
+    synchronized( myRemovedLock )
+    {
+      mySnapshot = null;
+      myRemovedFiles.add( path );
+      if( myJournal != null )
+        myJournal.addRemovedFile( path );
+    }
+  }
+
+  /**
+   * Registers the removed folder, forgetting all files and folders which were
+   * removed previously under it - they go away together with the folder.
+   */
+  public void addRemovedFolder( String path )
+  {
+    synchronized( myRemovedLock )
+    {
+      mySnapshot = null;
+      myRemovedFiles.removeSubtree( path );
+      myRemovedFolders.removeSubtree( path );
+      myRemovedFolders.add( path );
+      if( myJournal != null )
+        myJournal.addRemovedFolder( path );
+    }
+  }
+
+  public boolean isRemovedFile( String path )
+  {
+    synchronized( myRemovedLock ) {  return myRemovedFiles.contains( path );  }
+  }
+
+  /**
+   * Forgets the path whatever it was registered as, file or folder.
+   */
+  public void unremove( String path )
+  {
+    synchronized( myRemovedLock )
+    {
+      mySnapshot = null;
+      myRemovedFiles.remove( path );
+      myRemovedFolders.remove( path );
+      if( myJournal != null )
+        myJournal.unremove( path );
+    }
+  }
+
+  //---------------------------------------------------------------------------
+  //  Renamed files and folders
+  //---------------------------------------------------------------------------
+  @Nullable
+  public String getRenamedFrom( boolean isDir, String path )
+  {
+    synchronized( myRenamedLock ) {  return renamed( isDir ).get( path );  }
+  }
+
+  /**
+   * Records the rename of the item. The newer name always refers to the
+   * oldest one in the chain of renamings, and renaming the item back to its
+   * original name drops the record altogether.
+   */
+  public void rename( boolean isDir, String currentName, String newName )
+  {
+    synchronized( myRenamedLock )
+    {
+      String prevName = renamed( isDir ).get( currentName );
+      if( prevName == null )
+        prevName = currentName;
+
+      removeRenameRecord( isDir, currentName );
+      if( !prevName.equals( newName ) )
+        putRenameRecord( isDir, newName, prevName );
+
+      if( myJournal != null )
+        myJournal.rename( isDir, currentName, newName );
+    }
+  }
+
+  /**
+   * Continues the chain of renamings of the item, if it has one; the check
+   * and the rename are one step for other threads.
+   * @return whether the item was renamed before.
+   */
+  public boolean renameIfRenamed( boolean isDir, String currentName, String newName )
+  {
+    synchronized( myRenamedLock )
+    {
+      if( renamed( isDir ).get( currentName ) == null )
+        return false;
+      rename( isDir, currentName, newName );
+      return true;
+    }
+  }
+
+  /**
+   * Restores the rename record as is, e.g. from the persisted state.
+   */
+  public void putRenamed( boolean isDir, String newName, String oldName )
+  {
+    synchronized( myRenamedLock )
+    {
+      putRenameRecord( isDir, newName, oldName );
+      if( myJournal != null )
+        myJournal.putRenamed( isDir, newName, oldName );
+    }
+  }
+
+  public void removeRenamed( boolean isDir, String newName )
+  {
+    synchronized( myRenamedLock )
+    {
+      removeRenameRecord( isDir, newName );
+      if( myJournal != null )
+        myJournal.removeRenamed( isDir, newName );
+    }
+  }
+
+  /**
+   * Drops the rename record of the item originally named <code>oldName</code>,
+   * whatever name it carries now.
+   * @return the current name of the item, or <code>null</code> if there was
+   *         no such record.
+   */
+  @Nullable
+  public String forgetRenamedFrom( boolean isDir, String oldName )
+  {
+    synchronized( myRenamedLock )
+    {
+      String newName = renamedFrom( isDir ).get( oldName );
+      if( newName == null )
+        return null;
+
+      removeRenameRecord( isDir, newName );
+      if( myJournal != null )
+        myJournal.forgetRenamedFrom( isDir, oldName );
+      return newName;
+    }
+  }
+
+  public boolean isUnderRenamedDir( String path )
+  {
+    synchronized( myRenamedLock ) {  return myRenamedDirs.hasAncestor( path, true );  }
+  }
+
+  private PathPrefixMap<String> renamed( boolean isDir )
+  {
+    return isDir ? myRenamedDirs : myRenamedFiles;
+  }
+
+  private Map<String, String> renamedFrom( boolean isDir )
+  {
+    return isDir ? myRenamedDirsFrom : myRenamedFilesFrom;
+  }
+
+  //  Both directions of the rename records change together, under myRenamedLock.
+  private void putRenameRecord( boolean isDir, String newName, String oldName )
+  {
+    mySnapshot = null;
+    String replaced = renamed( isDir ).put( newName, oldName );
+    if( replaced != null && newName.equals( renamedFrom( isDir ).get( replaced ) ) )
+      renamedFrom( isDir ).remove( replaced );
+    renamedFrom( isDir ).put( oldName, newName );
+  }
+
+  private void removeRenameRecord( boolean isDir, String newName )
+  {
+    mySnapshot = null;
+    String oldName = renamed( isDir ).remove( newName );
+    if( oldName != null && newName.equals( renamedFrom( isDir ).get( oldName ) ) )
+      renamedFrom( isDir ).remove( oldName );
+  }
+
+  public void clear()
+  {
+    synchronized( myNewLock ) {
+      synchronized( myRemovedLock ) {
+        synchronized( myRenamedLock ) {
+          mySnapshot = null;
+          myNewFiles.clear();
+          myRemovedFiles.clear();
+          myRemovedFolders.clear();
+          myRenamedFiles.clear();
+          myRenamedDirs.clear();
+          myRenamedFilesFrom.clear();
+          myRenamedDirsFrom.clear();
+          if( myJournal != null )
+            myJournal.clear();
+        }
+      }
+    }
+  }
+
+  //---------------------------------------------------------------------------
+  //  Journal
+  //---------------------------------------------------------------------------
+
+  /**
+   * Starts journaling the mutations. The journal is compacted at once, so it
+   * also captures whatever the store holds already (e.g. the state restored
+   * from the workspace file).
+   */
+  void attachJournal( PendingChangeJournal journal ) throws IOException
+  {
+    synchronized( myNewLock ) {
+      synchronized( myRemovedLock ) {
+        synchronized( myRenamedLock ) {
+          journal.rewrite( new Snapshot( this ) );
+          myJournal = journal;
+        }
+      }
+    }
+  }
+
+  void detachJournal()
+  {
+    PendingChangeJournal journal = myJournal;
+    myJournal = null;
+    if( journal != null )
+      journal.close();
+  }
+
+  /**
+   * Rewrites the journal from the current state. The locks are taken before
+   * the journal's own monitor, in the same order as the mutations take them.
+   */
+  void compactJournal()
+  {
+    synchronized( myNewLock ) {
+      synchronized( myRemovedLock ) {
+        synchronized( myRenamedLock ) {
+          if( myJournal == null )
+            return;
+          try
+          {
+            myJournal.rewrite( new Snapshot( this ) );
+          }
+          catch( IOException e )
+          {
+            LOG.warn( e );
+          }
+        }
+      }
+    }
+  }
+
+  public Snapshot snapshot()
+  {
+    Snapshot snapshot = mySnapshot;
+    if( snapshot != null )
+      return snapshot;
+
+    synchronized( myNewLock ) {
+      synchronized( myRemovedLock ) {
+        synchronized( myRenamedLock ) {
+          if( mySnapshot == null )
+            mySnapshot = new Snapshot( this );
+          return mySnapshot;
+        }
+      }
+    }
+  }
+
+  /**
+   * Immutable copy of the whole store taken at one point in time.
+   */
+  public static class Snapshot
+  {
+    private final PathTable paths;
+    private final TIntHashSet newFiles;
+    private final SortedPathSet removedFiles;
+    private final SortedPathSet removedFolders;
+    private final PathPrefixMap<String> renamedFiles;
+    private final PathPrefixMap<String> renamedDirs;
+
+    private Snapshot( PendingChangeStore store )
+    {
+      paths = store.myPaths;
+      newFiles = new TIntHashSet( store.myNewFiles.toArray() );
+      removedFiles = new SortedPathSet( store.myRemovedFiles );
+      removedFolders = new SortedPathSet( store.myRemovedFolders );
+      renamedFiles = new PathPrefixMap<String>( store.myRenamedFiles );
+      renamedDirs = new PathPrefixMap<String>( store.myRenamedDirs );
+    }
+
+    public boolean isNewFile( String path )
+    {
+      int id = paths.find( path );
+      return id != PathTable.NONE && newFiles.contains( id );
+    }
+
+    public boolean isRemovedFile( String path )  {  return removedFiles.contains( path );  }
+    public boolean isUnderRenamedDir( String path )  {  return renamedDirs.hasAncestor( path, true );  }
+
+    @Nullable
+    public String getRenamedFrom( boolean isDir, String path )
+    {
+      return isDir ? renamedDirs.get( path ) : renamedFiles.get( path );
+    }
+
+    public Collection<String> getNewFiles()
+    {
+      List<String> result = new ArrayList<String>( newFiles.size() );
+      for( TIntIterator it = newFiles.iterator(); it.hasNext(); )
+        result.add( paths.getPath( it.next() ) );
+      return result;
+    }
+
+    public Collection<String> getRemovedFiles()   {  return Collections.unmodifiableCollection( removedFiles );  }
+    public Collection<String> getRemovedFolders() {  return Collections.unmodifiableCollection( removedFolders );  }
+
+    /**
+     * @return renamed files, new name mapped to the original one.
+     */
+    public Map<String, String> getRenamedFiles()  {  return toMap( renamedFiles );  }
+    public Map<String, String> getRenamedDirs()   {  return toMap( renamedDirs );  }
+
+    private static Map<String, String> toMap( PathPrefixMap<String> renamed )
+    {
+      Map<String, String> result = new LinkedHashMap<String, String>();
+      for( String path : renamed.keySet() )
+        result.put( path, renamed.get( path ) );
+      return result;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.intellij.vcs.starteam;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Set of paths stored as sorted buckets of names keyed by the parent folder.
+ * The parent path is kept once per bucket instead of once per entry, and all
+ * the buckets below a folder form one contiguous key range, so that dropping
+ * a whole subtree is a single range operation rather than a scan of the set.
+ * Iteration is ordered by folder and then by name within the folder.
+ */
+public class SortedPathSet extends AbstractSet<String>
+{
+  private static final char SEP = '/';
+
+  private final TreeMap<String, Bucket> myBuckets = new TreeMap<String, Bucket>();
+  private int mySize;
+
+  public SortedPathSet() {}
+
+  public SortedPathSet( SortedPathSet other )
+  {
+    for( Bucket bucket : other.myBuckets.values() )
+      myBuckets.put( bucket.path, new Bucket( bucket ) );
+    mySize = other.mySize;
+  }
+
+  public boolean add( String path )
+  {
+    path = normalize( path );
+    String parent = parentOf( path );
+    Bucket bucket = myBuckets.get( parent );
+    if( bucket == null )
+      myBuckets.put( parent, bucket = new Bucket( parent ) );
+
+    boolean added = bucket.names.add( nameOf( path ) );
+    if( added )
+      mySize++;
+    return added;
+  }
+
+  public boolean remove( Object o )
+  {
+    if( !(o instanceof String) )
+      return false;
+
+    String path = normalize( (String)o );
+    String parent = parentOf( path );
+    Bucket bucket = myBuckets.get( parent );
+    if( bucket == null || !bucket.names.remove( nameOf( path ) ) )
+      return false;
+
+    if( bucket.names.isEmpty() )
+      myBuckets.remove( parent );
+    mySize--;
+    return true;
+  }
+
+  public boolean contains( Object o )
+  {
+    if( !(o instanceof String) )
+      return false;
+
+    String path = normalize( (String)o );
+    Bucket bucket = myBuckets.get( parentOf( path ) );
+    return bucket != null && bucket.names.contains( nameOf( path ) );
+  }
+
+  /**
+   * Removes the path together with everything stored below it.
+   */
+  public void removeSubtree( String path )
+  {
+    path = normalize( path );
+    remove( path );
+
+    Bucket children = myBuckets.remove( path );
+    if( children != null )
+      mySize -= children.names.size();
+
+    //  All the descendant folders sort between "path/" and "path0".
+    SortedMap<String, Bucket> descendants = myBuckets.subMap( path + SEP, path + (char)(SEP + 1) );
+    for( Bucket bucket : descendants.values() )
+      mySize -= bucket.names.size();
+    descendants.clear();
+  }
+
+  public int size()   {  return mySize;  }
+
+  public void clear()
+  {
+    myBuckets.clear();
+    mySize = 0;
+  }
+
+  public Iterator<String> iterator()
+  {
+    final Iterator<Bucket> buckets = myBuckets.values().iterator();
+    return new Iterator<String>() {
+      private Bucket bucket;
+      private Iterator<String> names;
+
+      public boolean hasNext()
+      {
+        while( names == null || !names.hasNext() )
+        {
+          if( !buckets.hasNext() )
+            return false;
+          bucket = buckets.next();
+          names = bucket.names.iterator();
+        }
+        return true;
+      }
+
+      public String next()
+      {
+        if( !hasNext() )
+          throw new NoSuchElementException();
+        return bucket.path + SEP + names.next();
+      }
+
+      public void remove()  {  throw new UnsupportedOperationException();  }
+    };
+  }
+
+  private static String normalize( String path )
+  {
+    path = path.replace( java.io.File.separatorChar, SEP );
+    if( path.length() > 1 && path.charAt( path.length() - 1 ) == SEP )
+      path = path.substring( 0, path.length() - 1 );
+    return path;
+  }
+
+  private static String parentOf( String path )
+  {
+    int index = path.lastIndexOf( SEP );
+    return (index > 0) ? path.substring( 0, index ) : "";
+  }
+
+  private static String nameOf( String path )
+  {
+    return path.substring( path.lastIndexOf( SEP ) + 1 );
+  }
+
+  private static class Bucket
+  {
+    private final String path;
+    private final TreeSet<String> names = new TreeSet<String>();
+
+    private Bucket( String path )
+    {
+      this.path = path;
+    }
+
+    private Bucket( Bucket other )
+    {
+      path = other.path;
+      names.addAll( other.names );
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.vcs.VcsException;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs batches of items on the application thread pool with a bounded number
+ * of batches in flight. Batches are expected to be grouped so that the
+ * expensive server lookups (folder resolution, item population) are made once
+ * per batch. Results are handed back to the calling thread as they arrive, so
+ * that progress reporting and cancellation stay on the caller's side.
+ */
+public class StarteamBatchRunner<T>
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamBatchRunner");
+  private static final long POLL_INTERVAL = 100;
+
+  public interface BatchProcessor<T>
+  {
+    /**
+     * Called on a pooled thread once per batch. Every processed item must be
+     * reported through the sink; unreported items are considered skipped.
+     */
+    void process( List<T> batch, Sink<T> sink );
+  }
+
+  public interface Sink<T>
+  {
+    void done( T item, @Nullable VcsException error );
+    boolean isCanceled();
+  }
+
+  public interface Listener<T>
+  {
+    /**
+     * Called on the thread which invoked {@link #run} for every reported item.
+     * A <code>null</code> item denotes the failure of a whole batch. Throwing
+     * {@link ProcessCanceledException} stops the remaining batches.
+     */
+    void processed( @Nullable T item, @Nullable VcsException error );
+  }
+
+  private final int myParallelism;
+  private volatile boolean myCanceled;
+
+  public StarteamBatchRunner( int parallelism )
+  {
+    myParallelism = Math.max( 1, parallelism );
+  }
+
+  public void run( Collection<List<T>> batches, final BatchProcessor<T> processor, Listener<T> listener )
+  {
+    final ConcurrentLinkedQueue<List<T>> pending = new ConcurrentLinkedQueue<List<T>>( batches );
+    final LinkedBlockingQueue<Outcome<T>> outcomes = new LinkedBlockingQueue<Outcome<T>>();
+    final Sink<T> sink = new Sink<T>() {
+      public void done( T item, @Nullable VcsException error ) {  outcomes.add( new Outcome<T>( item, error ) );  }
+      public boolean isCanceled()                              {  return myCanceled;  }
+    };
+
+    int workers = Math.min( myParallelism, pending.size() );
+    final CountDownLatch finished = new CountDownLatch( workers );
+    for( int i = 0; i < workers; i++ )
+    {
+      ApplicationManager.getApplication().executeOnPooledThread( new Runnable() {
+        public void run()
+        {
+          try
+          {
+            List<T> batch;
+            while( !myCanceled && (batch = pending.poll()) != null )
+            {
+              try {  processor.process( batch, sink );  }
+              catch( RuntimeException e )
+              {
+                LOG.debug( e );
+                outcomes.add( new Outcome<T>( null, new VcsException( e ) ) );
+              }
+            }
+          }
+          finally {  finished.countDown();  }
+        }
+      });
+    }
+
+    try
+    {
+      while( true )
+      {
+        Outcome<T> outcome = outcomes.poll( POLL_INTERVAL, TimeUnit.MILLISECONDS );
+        if( outcome != null )
+          listener.processed( outcome.item, outcome.error );
+        else
+        if( finished.getCount() == 0 && outcomes.isEmpty() )
+          break;
+      }
+    }
+    catch( InterruptedException e )
+    {
+      myCanceled = true;
+      throw new ProcessCanceledException();
+    }
+    catch( ProcessCanceledException e )
+    {
+      myCanceled = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Splits grouped items into batches of at most <code>batchSize</code> items
+   * each, never mixing items of different groups within one batch.
+   */
+  public static <K, T> List<List<T>> partition( Map<K, List<T>> groups, int batchSize )
+  {
+    List<List<T>> batches = new ArrayList<List<T>>();
+    for( List<T> group : groups.values() )
+    {
+      for( int from = 0; from < group.size(); from += batchSize )
+        batches.add( new ArrayList<T>( group.subList( from, Math.min( group.size(), from + batchSize ) ) ) );
+    }
+    return batches;
+  }
+
+  private static class Outcome<T>
+  {
+    private final T item;
+    private final VcsException error;
+
+    private Outcome( T item, VcsException error )
+    {
+      this.item = item;
+      this.error = error;
+    }
+  }
+}
@@ -31,14 +31,24 @@ public class StarteamChangeProvider implements ChangeProvider
   private final StarteamVcs host;
   private boolean     warnShown;
 
+  private final PathTable paths;
+  private final StarteamStatusTable statuses;
+
+  //  Paths collected during the pass. They are not interned in the host's
+  //  path table, which holds only the items the plugin keeps track of.
   private final HashSet<String> filesNew = new HashSet<String>();
   private final HashSet<String> filesChanged = new HashSet<String>();
   private final HashSet<String> filesIgnored = new HashSet<String>();
 
+  //  Pending local changes as of the start of the current pass.
+  private PendingChangeStore.Snapshot pending;
+
   public StarteamChangeProvider( Project project, StarteamVcs host )
   {
     this.project = project;
     this.host = host;
+    paths = host.getPathTable();
+    statuses = host.getStatusTable();
     warnShown = false;
   }
 
@@ -51,6 +61,7 @@ public class StarteamChangeProvider implements ChangeProvider
                          final ChangeListManagerGate addGate)
   {
     initInternals();
+    StarteamItemCache cache = host.pinItems();
     try
     {
       iterateOverScope( dirtyScope, builder );
@@ -74,6 +85,10 @@ public class StarteamChangeProvider implements ChangeProvider
     catch( TypeNotFoundException e ){
       processFailedConnection( StarteamBundle.message("message.text.expired.license") );
     }
+    finally
+    {
+      StarteamVcs.unpinItems( cache );
+    }
   }
 
   private void processFailedConnection( final String msg )
@@ -171,7 +186,18 @@ public class StarteamChangeProvider implements ChangeProvider
       return;
     }
 
-    com.starbase.starteam.File file = host.findFile( getSTCanonicPath( filePath ) );
+    //  Files untouched since their status was taken last time need no
+    //  round trip to the server.
+    int id = paths.find( path );
+    File ioFile = filePath.getIOFile();
+    if( statuses.isUpToDate( id, ioFile.lastModified(), ioFile.length() ) )
+    {
+      processStatus( statuses.getStatus( id ), filePath, builder );
+      return;
+    }
+
+    //  The status pass reads the statuses of most files in the folder.
+    com.starbase.starteam.File file = host.findFile( getSTCanonicPath( filePath ), StarteamProjection.STATUS );
 
     try
     {
@@ -193,28 +219,8 @@ public class StarteamChangeProvider implements ChangeProvider
           //  probably we deal with latest version
         }
 
-        int status = file.getStatus();
-        if( status == Status.NEW )
-          filesNew.add( path );
-        else
-        if( status == Status.MERGE )
-          builder.processChange( new Change( new STContentRevision(host, filePath ), new CurrentContentRevision( filePath ), FileStatus.MERGE ),
-                                 StarteamVcs.getKey());
-        else
-        if( status == Status.MODIFIED )
-          filesChanged.add( path );
-        else
-        if( status == Status.MISSING )
-        {
-          //  We have two source of information on locally deleted files:
-          //  - one is stored in StarteamVcs host as a list controllable by VFS listener
-          //  - here, on folder traverse.
-          //  So do not duplicate files in the dirty lists.
-
-          String normPath = filePath.getPath().replace( File.separatorChar, '/');
-          if( !host.removedFiles.contains( normPath ))
-            builder.processLocallyDeletedFile( filePath );
-        }
+        host.recordStatus( path, file );
+        processStatus( file.getStatus(), filePath, builder );
       }
     }
     catch( Exception e )
@@ -224,6 +230,31 @@ public class StarteamChangeProvider implements ChangeProvider
     }
   }
 
+  private void processStatus( int status, final FilePath filePath, final ChangelistBuilder builder )
+  {
+    if( status == Status.NEW )
+      filesNew.add( filePath.getPath() );
+    else
+    if( status == Status.MERGE )
+      builder.processChange( new Change( new STContentRevision(host, filePath ), new CurrentContentRevision( filePath ), FileStatus.MERGE ),
+                             StarteamVcs.getKey());
+    else
+    if( status == Status.MODIFIED )
+      filesChanged.add( filePath.getPath() );
+    else
+    if( status == Status.MISSING )
+    {
+      //  We have two source of information on locally deleted files:
+      //  - one is stored in StarteamVcs host as a list controllable by VFS listener
+      //  - here, on folder traverse.
+      //  So do not duplicate files in the dirty lists.
+
+      String normPath = filePath.getPath().replace( File.separatorChar, '/');
+      if( !pending.isRemovedFile( normPath ))
+        builder.processLocallyDeletedFile( filePath );
+    }
+  }
+
   private void processFolder( final FilePath filePath, final ChangelistBuilder builder )
   {
     String  path = filePath.getPath();
@@ -246,7 +277,7 @@ public class StarteamChangeProvider implements ChangeProvider
       //  - directory is renamed locally
       if( stFolder == null )
       {
-          String oldPath = host.renamedDirs.get( filePath.getPath() );
+          String oldPath = pending.getRenamedFrom( true, filePath.getPath() );
           if( oldPath != null )
           {
             //  For the renamed file we receive two change requests: one for
@@ -260,7 +291,7 @@ public class StarteamChangeProvider implements ChangeProvider
             /*
             else
             {
-              host.renamedDirs.remove( filePath.getPath() );
+              host.getPendingChanges().removeRenamed( true, filePath.getPath() );
             }
             */
 //            host.setWorkingFolderName( oldName.getIOFile().getPath(), filePath.getVirtualFile().getName() );
@@ -277,7 +308,7 @@ public class StarteamChangeProvider implements ChangeProvider
       //  This case (Folder != null) comes from the batch mode.
       else
       {
-        String oldPath = host.renamedDirs.get( filePath.getPath() );
+        String oldPath = pending.getRenamedFrom( true, filePath.getPath() );
         if( oldPath != null )
         {
           FilePath oldName = VcsUtil.getFilePath( oldPath );
@@ -297,8 +328,8 @@ public class StarteamChangeProvider implements ChangeProvider
     for( String path : filesNew )
     {
       FilePath newFP = VcsUtil.getFilePath( path );
-      String   oldName = host.renamedFiles.get( path );
-      if( host.containsNew( path ) )
+      String   oldName = pending.getRenamedFrom( false, path );
+      if( pending.isNewFile( path ) )
       {
         builder.processChange( new Change( null, new CurrentContentRevision( newFP ) ), StarteamVcs.getKey());
       }
@@ -328,8 +359,8 @@ public class StarteamChangeProvider implements ChangeProvider
   private void addRemovedFiles( final ChangelistBuilder builder )
   {
     final HashSet<String> files = new HashSet<String>();
-    files.addAll( host.removedFolders );
-    files.addAll( host.removedFiles );
+    files.addAll( pending.getRemovedFolders() );
+    files.addAll( pending.getRemovedFiles() );
 
     for( String path : files )
       builder.processLocallyDeletedFile( VcsUtil.getFilePath( path ) );
@@ -358,12 +389,7 @@ public class StarteamChangeProvider implements ChangeProvider
 
   private boolean isFileUnderRenamedDir( String path )
   {
-    for( String newPath : host.renamedDirs.keySet() )
-    {
-      if( path.startsWith( newPath ) && !path.equalsIgnoreCase( newPath ) )
-        return true;
-    }
-    return false;
+    return pending.isUnderRenamedDir( path );
   }
 
   public static String getSTCanonicPath( String path )
@@ -378,6 +404,7 @@ public class StarteamChangeProvider implements ChangeProvider
 
   private void initInternals()
   {
+    pending = host.getPendingChanges().snapshot();
     filesNew.clear();
     filesChanged.clear();
     filesIgnored.clear();
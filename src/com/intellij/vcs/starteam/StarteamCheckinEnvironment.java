@@ -45,10 +45,19 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackEnvironment {
+  //  Removals and restores share one SDK session, which is not known to be
+  //  safe for concurrent use: one batch at a time.
+  private static final int PARALLELISM = 1;
+  private static final int BATCH_SIZE = 64;
+
   private final Project project;
   private final StarteamVcs host;
 
@@ -91,7 +100,7 @@ public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackE
     commitChanged(changes, preparedComment, processedFiles, errors, mergeFiles);
     commitRenamed(changes, preparedComment, processedFiles, errors);
 
-    VcsUtil.refreshFiles(project, processedFiles);
+    StarteamVfsRefresher.refreshPathsAndMarkDirty(project, processedFiles);
 
     if (mergeFiles.size() > 0) {
       final UpdatedFiles updatedFiles = UpdatedFiles.create();
@@ -222,7 +231,7 @@ public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackE
           String oldPath = StarteamChangeProvider.getSTCanonicPath(change.getBeforeRevision().getFile());
           if (file.isDirectory()) {
             host.renameDirectoryNew(StarteamChangeProvider.getSTCanonicPath(newPath), file.getName());
-            host.renamedDirs.remove(newPath);
+            host.getPendingChanges().removeRenamed(true, newPath);
           }
           else {
             //  If parent folders' names of the revisions coinside, then we
@@ -238,7 +247,7 @@ public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackE
               host.moveRenameAndCheckInFile(oldPath, newFolder, file.getName(), preparedComment);
             }
 
-            host.renamedFiles.remove(newPath);
+            host.getPendingChanges().removeRenamed(false, newPath);
             processedFiles.add(file);
           }
         }
@@ -266,12 +275,11 @@ public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackE
     HashSet<FilePath> filesAndFolder = new HashSet<FilePath>();
     collectNewChangesBack(changes, filesAndFolder, processedFiles);
 
-    VcsDirtyScopeManager mgr = VcsDirtyScopeManager.getInstance(project);
     for (FilePath file : filesAndFolder) {
       listener.accept(file);
       host.deleteNewFile(file.getPath());
-      mgr.fileDirty(file);
     }
+    VcsDirtyScopeManager.getInstance(project).filePathsDirty(filesAndFolder, Collections.<FilePath>emptyList());
   }
 
   /**
@@ -280,7 +288,7 @@ public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackE
    * This ensures that no file will be left in any change list with status NEW.
    */
   private void collectNewChangesBack(List<Change> changes, HashSet<FilePath> newFilesAndfolders, HashSet<FilePath> processedFiles) {
-    HashSet<FilePath> foldersNew = new HashSet<FilePath>();
+    PathPrefixMap<FilePath> foldersNew = new PathPrefixMap<FilePath>(false);
     for (Change change : changes) {
       if (VcsUtil.isChangeForNew(change)) {
         FilePath filePath = change.getAfterRevision().getFile();
@@ -288,142 +296,232 @@ public class StarteamCheckinEnvironment implements CheckinEnvironment, RollbackE
           newFilesAndfolders.add(filePath);
         }
         else {
-          foldersNew.add(filePath);
+          foldersNew.put(filePath.getPath(), filePath);
         }
         processedFiles.add(filePath);
       }
     }
 
-    ChangeListManager clMgr = ChangeListManager.getInstance(project);
-    FileStatusManager fsMgr = FileStatusManager.getInstance(project);
-    List<VirtualFile> allAffectedFiles = clMgr.getAffectedFiles();
-
-    for (VirtualFile file : allAffectedFiles) {
-      FileStatus status = fsMgr.getStatus(file);
-      if (status == FileStatus.ADDED) {
-        for (FilePath folder : foldersNew) {
-          if (file.getPath().toLowerCase().startsWith(folder.getPath().toLowerCase())) {
-            FilePath path = clMgr.getChange(file).getAfterRevision().getFile();
-            newFilesAndfolders.add(path);
-          }
+    if (!foldersNew.isEmpty()) {
+      ChangeListManager clMgr = ChangeListManager.getInstance(project);
+      FileStatusManager fsMgr = FileStatusManager.getInstance(project);
+      List<VirtualFile> allAffectedFiles = clMgr.getAffectedFiles();
+
+      for (VirtualFile file : allAffectedFiles) {
+        if (fsMgr.getStatus(file) == FileStatus.ADDED && foldersNew.hasAncestor(file.getPath(), false)) {
+          FilePath path = clMgr.getChange(file).getAfterRevision().getFile();
+          newFilesAndfolders.add(path);
         }
       }
     }
-    newFilesAndfolders.addAll(foldersNew);
+    newFilesAndfolders.addAll(foldersNew.values());
   }
 
   /**
    * Rolling back modified files is a getting out the latest copy of them
    * from the repository. The only difference in the processing is made for
    * renamed files - we must get out file with the original name.
+   * Files are restored in batches by {@link StarteamRollbackEngine}, folders
+   * are renamed back one by one.
    */
   private void rollbackChanged(List<Change> changes, List<VcsException> errors, @NotNull final RollbackProgressListener listener) {
+    List<StarteamRollbackEngine.Request> requests = new ArrayList<StarteamRollbackEngine.Request>();
+    Map<StarteamRollbackEngine.Request, FilePath> renamedFiles = new HashMap<StarteamRollbackEngine.Request, FilePath>();
+
     for (Change change : changes) {
       FilePath newFile = change.getAfterRevision().getFile();
       String newPath = StarteamChangeProvider.getSTCanonicPath(newFile);
-      try {
-        if (VcsUtil.isRenameChange(change)) {
-          listener.accept(change);
+      if (VcsUtil.isRenameChange(change)) {
+        FilePath oldFile = change.getBeforeRevision().getFile();
+        String oldPath = StarteamChangeProvider.getSTCanonicPath(oldFile);
 
-          FilePath oldFile = change.getBeforeRevision().getFile();
-          String oldPath = StarteamChangeProvider.getSTCanonicPath(oldFile);
-
-          if (newFile.isDirectory()) {
+        if (newFile.isDirectory()) {
+          listener.accept(change);
+          try {
             new File(newPath).renameTo(new File(oldPath));
             host.setWorkingFolderName(newPath, oldFile.getName());
-            host.renamedDirs.remove(newFile.getPath());
+            host.getPendingChanges().removeRenamed(true, newFile.getPath());
           }
-          else {
-            host.checkoutFile(oldPath, false);
-            host.renamedFiles.remove(newFile.getPath());
-
-            FileUtil.delete(new File(newPath));
+          catch (VcsException e) {
+            errors.add(e);
           }
         }
-        else if (!VcsUtil.isChangeForNew(change)) {
-          listener.accept(change);
-
-          host.checkoutFile(newPath, false);
+        else {
+          StarteamRollbackEngine.Request request = new StarteamRollbackEngine.Request(change, oldPath);
+          requests.add(request);
+          renamedFiles.put(request, newFile);
         }
       }
-      catch (VcsException e) {
-        errors.add(e);
+      else if (!VcsUtil.isChangeForNew(change)) {
+        requests.add(new StarteamRollbackEngine.Request(change, newPath));
+      }
+    }
+
+    List<StarteamRollbackEngine.Request> restored = new ArrayList<StarteamRollbackEngine.Request>();
+    try {
+      new StarteamRollbackEngine(host).rollback(requests, restored, errors, listener);
+    }
+    finally {
+      //  Also when cancelled: the files restored so far are back under their old names.
+      for (StarteamRollbackEngine.Request request : restored) {
+        FilePath newFile = renamedFiles.get(request);
+        if (newFile != null) {
+          host.getPendingChanges().removeRenamed(false, newFile.getPath());
+          FileUtil.delete(new File(StarteamChangeProvider.getSTCanonicPath(newFile)));
+        }
       }
     }
   }
 
   public List<VcsException> scheduleMissingFileForDeletion(List<FilePath> files) {
-    List<File> ioFiles = ChangesUtil.filePathsToFiles(files);
+    final List<VcsException> errors = new ArrayList<VcsException>();
+    final StarteamFolderIndex index = new StarteamFolderIndex(host, StarteamProjection.LOOKUP);
+
+    Map<String, List<File>> fileGroups = new LinkedHashMap<String, List<File>>();
+    Map<String, List<File>> folderGroups = new LinkedHashMap<String, List<File>>();
+    groupByParent(ChangesUtil.filePathsToFiles(files), index, fileGroups, folderGroups);
 
     //  First, remove all ordinary files and only then folders in order not to
     //  deal with mutual subordering.
-    removeItems(ioFiles, false);
-    removeItems(ioFiles, true);
-    return new ArrayList<VcsException>();
+    removeItems(fileGroups, index, errors);
+    removeItems(folderGroups, index, errors);
+    return errors;
   }
 
-  private void removeItems(List<File> files, boolean isDir) {
+  /**
+   * Splits the items into files and folders (as the repository sees them),
+   * each grouped by the parent folder so that a group shares all the lookups.
+   */
+  private static void groupByParent(List<File> files, StarteamFolderIndex index,
+                                    Map<String, List<File>> fileGroups, Map<String, List<File>> folderGroups) {
     for (File file : files) {
-      String starteamPath = StarteamChangeProvider.getSTCanonicPath(file.getPath());
-      Folder folder = host.findFolder(starteamPath);
-      if ((folder != null) == isDir) {
-        if (folder != null) {
-          folder.remove();
-
-          String ignoredPath = starteamPath.substring(0, file.getParentFile().getPath().length()) + File.separatorChar + StarteamVcs
-            .RENAMED_FOLDER_PREFIX + file.getName();
-          FileUtil.delete(new File(ignoredPath));
-        }
-        else {
-          com.starbase.starteam.File starteamFile = host.findFile(starteamPath);
-          if (starteamFile != null) starteamFile.remove();
-        }
+      boolean isDir = index.folder(StarteamChangeProvider.getSTCanonicPath(file.getPath())) != null;
+      Map<String, List<File>> groups = isDir ? folderGroups : fileGroups;
 
-        String canonicPath = file.getPath().replace(File.separatorChar, '/');
-        host.removedFolders.remove(canonicPath);
-        host.removedFiles.remove(canonicPath);
+      String parent = StarteamFolderIndex.nameKey(file.getParent());
+      List<File> group = groups.get(parent);
+      if (group == null) {
+        groups.put(parent, group = new ArrayList<File>());
       }
+      group.add(file);
     }
   }
 
+  private void removeItems(Map<String, List<File>> groups, final StarteamFolderIndex index, final List<VcsException> errors) {
+    StarteamBatchRunner<File> runner = new StarteamBatchRunner<File>(PARALLELISM);
+    runner.run(StarteamBatchRunner.partition(groups, BATCH_SIZE), new StarteamBatchRunner.BatchProcessor<File>() {
+      public void process(List<File> batch, StarteamBatchRunner.Sink<File> sink) {
+        for (File file : batch) {
+          String starteamPath = StarteamChangeProvider.getSTCanonicPath(file.getPath());
+          try {
+            Folder folder = index.folder(starteamPath);
+            if (folder != null) {
+              folder.remove();
+              host.getViewIndex().removed(true, starteamPath);
+              StarteamItemCache itemCache = host.getItemCache();
+              if (itemCache != null) itemCache.forget(folder);
+              FileUtil.delete(new File(getIgnoredPath(file)));
+            }
+            else {
+              com.starbase.starteam.File starteamFile = index.file(starteamPath);
+              if (starteamFile != null) {
+                starteamFile.remove();
+                host.getViewIndex().removed(false, starteamPath);
+              }
+            }
+            index.forget(starteamPath);
+            sink.done(file, null);
+          }
+          catch (RuntimeException e) {
+            sink.done(file, new VcsException(e));
+          }
+        }
+      }
+    }, new StarteamBatchRunner.Listener<File>() {
+      public void processed(@Nullable File file, @Nullable VcsException error) {
+        if (error != null) {
+          errors.add(error);
+        }
+        else if (file != null) {
+          host.getPendingChanges().unremove(file.getPath().replace(File.separatorChar, '/'));
+        }
+      }
+    });
+  }
+
   public void rollbackMissingFileDeletion(List<FilePath> files, final List<VcsException> exceptions,
                                                         final RollbackProgressListener listener) {
-    List<File> ioFiles = ChangesUtil.filePathsToFiles(files);
+    final StarteamFolderIndex index = new StarteamFolderIndex(host, StarteamProjection.LOOKUP);
+
+    Map<String, List<File>> fileGroups = new LinkedHashMap<String, List<File>>();
+    Map<String, List<File>> folderGroups = new LinkedHashMap<String, List<File>>();
+    groupByParent(ChangesUtil.filePathsToFiles(files), index, fileGroups, folderGroups);
+
     //  First, unremove all folders and only then files
-    unremoveItems(ioFiles, true, exceptions, listener);
-    unremoveItems(ioFiles, false, exceptions, listener);
+    unremoveFolders(folderGroups, exceptions, listener);
+    unremoveFiles(fileGroups, index, exceptions, listener);
   }
 
-  private void unremoveItems(List<File> files, boolean isDir, List<VcsException> errors, final RollbackProgressListener listener) {
-    for (File file : files) {
-      try {
-        String starteamPath = StarteamChangeProvider.getSTCanonicPath(file.getPath());
-        String canonicPath = file.getPath().replace(File.separatorChar, '/');
+  /**
+   * Removed folders still exist in the repository, they are only hidden
+   * locally under the "renamed" prefix - bring them back.
+   */
+  private void unremoveFolders(Map<String, List<File>> groups, List<VcsException> errors, final RollbackProgressListener listener) {
+    for (List<File> group : groups.values()) {
+      for (File file : group) {
+        listener.accept(file);
+        try {
+          host.getPendingChanges().unremove(file.getPath().replace(File.separatorChar, '/'));
+          FileUtil.rename(new File(getIgnoredPath(file)), file);
+        }
+        catch (IOException e) {
+          errors.add(new VcsException(e));
+        }
+      }
+    }
+  }
 
-        Folder folder = host.findFolder(starteamPath);
-        if ((folder != null) == isDir) {
-          listener.accept(file);
-          if (folder != null) {
-            String ignoredPath = starteamPath.substring(0, file.getParentFile().getPath().length()) + File.separatorChar + StarteamVcs
-              .RENAMED_FOLDER_PREFIX + file.getName();
-            host.removedFolders.remove(canonicPath);
-            FileUtil.rename(new File(ignoredPath), file);
+  private void unremoveFiles(Map<String, List<File>> groups, final StarteamFolderIndex index, final List<VcsException> errors,
+                             final RollbackProgressListener listener) {
+    StarteamBatchRunner<File> runner = new StarteamBatchRunner<File>(PARALLELISM);
+    runner.run(StarteamBatchRunner.partition(groups, BATCH_SIZE), new StarteamBatchRunner.BatchProcessor<File>() {
+      public void process(List<File> batch, StarteamBatchRunner.Sink<File> sink) {
+        for (File file : batch) {
+          if (sink.isCanceled()) return;
+
+          String starteamPath = StarteamChangeProvider.getSTCanonicPath(file.getPath());
+          try {
+            com.starbase.starteam.File starteamFile = index.file(starteamPath);
+            if (starteamFile != null) host.restoreFile(starteamFile, starteamPath);
+            sink.done(file, null);
           }
-          else {
-            com.starbase.starteam.File starteamFile = host.findFile(starteamPath);
-            if (starteamFile != null) host.checkoutFile(starteamFile, false);
-
-            host.removedFiles.remove(canonicPath);
+          catch (VcsException e) {
+            sink.done(file, e);
           }
         }
       }
-      catch (VcsException e) {
-        errors.add(e);
-      }
-      catch (IOException e) {
-        errors.add(new VcsException(e));
+    }, new StarteamBatchRunner.Listener<File>() {
+      public void processed(@Nullable File file, @Nullable VcsException error) {
+        if (file != null) {
+          listener.accept(file);
+          if (error == null) {
+            host.getPendingChanges().unremove(file.getPath().replace(File.separatorChar, '/'));
+          }
+        }
+        if (error != null) {
+          errors.add(error);
+        }
+        listener.checkCanceled();
       }
-    }
+    });
+  }
+
+  /**
+   * Path under which a locally deleted folder is kept until the deletion is
+   * either committed or rolled back.
+   */
+  private static String getIgnoredPath(File file) {
+    return file.getParent() + File.separatorChar + StarteamVcs.RENAMED_FOLDER_PREFIX + file.getName();
   }
 
   public List<VcsException> scheduleUnversionedFilesForAddition(List<VirtualFile> files) {
@@ -43,6 +43,9 @@ public class StarteamConfigurable implements Configurable
   private JPanel optionsPanel;
   private JCheckBox myCheckLockOnCheckout;
   private JCheckBox myCheckUnlockOnCheckin;
+  private JCheckBox myCheckListenServerEvents;
+  private JCheckBox myCheckUseCacheAgent;
+  private JTextField myFldCacheAgent;
   private File myLastChosenDirectory;
 
   public StarteamConfigurable(com.intellij.openapi.project.Project project ) {
@@ -76,6 +79,11 @@ public class StarteamConfigurable implements Configurable
         selectWorkingPath();
       }
     });
+    myCheckUseCacheAgent.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        myFldCacheAgent.setEnabled(myCheckUseCacheAgent.isSelected());
+      }
+    });
     myBtnTest.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
         final View view = getView();
@@ -108,23 +116,25 @@ public class StarteamConfigurable implements Configurable
   }
 
   private void selectView() {
-    Project project = getProject();
-    if (project == null) return;
+    final StarteamMetadataCache.ServerMetadata metadata = getMetadata();
+    if (metadata == null) return;
 
-    final View[] views = project.getViews();
-    if (views.length == 0) {
+    //  Browsing again does not download the whole list of views.
+    String[] names = metadata.getViewNames(myFldProject.getText());
+    if (names == null) {
+      Project project = getProject();
+      if (project == null) return;
+
+      metadata.recordViews(project, project.getViews());
+      names = metadata.getViewNames(project.getName());
+    }
+
+    if (names == null || names.length == 0) {
       Messages.showMessageDialog(myPanel, StarteamBundle.message("message.text.configuration.no.views.found"),
                                  StarteamBundle.message("message.title.configuration.error"), Messages.getErrorIcon());
       return;
     }
 
-    String[] names = new String[views.length];
-
-    for (int i = 0; i < views.length; i++) {
-      View view = views[i];
-      names[i] = view.getName();
-    }
-
     ArrayList<String> nameList = new ArrayList<String>(Arrays.asList(names));
     Collections.sort(nameList);
     String[] sortedNames = ArrayUtil.toStringArray(nameList);
@@ -142,6 +152,8 @@ public class StarteamConfigurable implements Configurable
     if (server == null) return null;
 
     final Project[] projects = server.getProjects();
+    final StarteamMetadataCache.ServerMetadata metadata = getMetadata();
+    if (metadata != null) metadata.recordProjects(projects);
     String name = myFldProject.getText();
 
     for (Project project : projects) {
@@ -153,41 +165,43 @@ public class StarteamConfigurable implements Configurable
   }
 
   private void selectProject() {
-    Server server = getServer();
-    if (server == null) return;
-
-    try {
-      final Project[] projects = server.getProjects();
-
-      if (projects.length == 0) {
-        Messages.showMessageDialog(myPanel, StarteamBundle.message("message.text.configuration.error.no.projects.found"), StarteamBundle.message("message.title.configuration.error"), Messages.getErrorIcon());
-        return;
+    final StarteamMetadataCache.ServerMetadata metadata = getMetadata();
+    if (metadata == null) return;
+
+    //  Browsing again does not download the whole list of projects.
+    String[] names = metadata.getProjectNames();
+    if (names == null) {
+      Server server = getServer();
+      if (server == null) return;
+
+      try {
+        metadata.recordProjects(server.getProjects());
+        names = metadata.getProjectNames();
       }
-
-      String[] names = new String[projects.length];
-      for (int i = 0; i < projects.length; i++) {
-        Project project = projects[i];
-        names[i] = project.getName();
+      finally {
+        server.disconnect();
       }
+    }
 
-      ArrayList<String> nameList = new ArrayList<String>(Arrays.asList(names));
-      Collections.sort(nameList);
+    if (names == null || names.length == 0) {
+      Messages.showMessageDialog(myPanel, StarteamBundle.message("message.text.configuration.error.no.projects.found"), StarteamBundle.message("message.title.configuration.error"), Messages.getErrorIcon());
+      return;
+    }
 
-      String[] sortedNames = ArrayUtil.toStringArray(nameList);
+    ArrayList<String> nameList = new ArrayList<String>(Arrays.asList(names));
+    Collections.sort(nameList);
 
-      final int i =
-        Messages.showChooseDialog(myPanel,
-                                  StarteamBundle.message("request.text.configuration.select.project"),
-                                  StarteamBundle.message("request.text.title.select.project"),
-                                  sortedNames, sortedNames[0], Messages.getQuestionIcon());
+    String[] sortedNames = ArrayUtil.toStringArray(nameList);
 
-      if (i < 0) return;
+    final int i =
+      Messages.showChooseDialog(myPanel,
+                                StarteamBundle.message("request.text.configuration.select.project"),
+                                StarteamBundle.message("request.text.title.select.project"),
+                                sortedNames, sortedNames[0], Messages.getQuestionIcon());
 
-      myFldProject.setText(sortedNames[i]);
-    }
-    finally {
-      server.disconnect();
-    }
+    if (i < 0) return;
+
+    myFldProject.setText(sortedNames[i]);
   }
 
   private void selectWorkingPath()
@@ -216,6 +230,18 @@ public class StarteamConfigurable implements Configurable
     }
   }
 
+  @Nullable
+  private StarteamMetadataCache.ServerMetadata getMetadata() {
+    try {
+      return StarteamMetadataCache.getInstance().get(myFldServer.getText(), Integer.parseInt(myFldPort.getText()), myFldUser.getText());
+    }
+    catch (NumberFormatException e) {
+      Messages.showMessageDialog(myPanel, StarteamBundle.message("message.text.configuration.invalid.port"), StarteamBundle.message("message.title.configuration.error"), Messages.getErrorIcon());
+      LOG.debug(e);
+      return null;
+    }
+  }
+
   private Server getServer() {
     try {
       Server server = new Server(myFldServer.getText(), Integer.parseInt(myFldPort.getText()));
@@ -251,6 +277,10 @@ public class StarteamConfigurable implements Configurable
     myFldWorkingPath.setText( configuration.ALTERNATIVE_WORKING_PATH );
     myCheckLockOnCheckout.setSelected( configuration.LOCK_ON_CHECKOUT );
     myCheckUnlockOnCheckin.setSelected( configuration.UNLOCK_ON_CHECKIN );
+    myCheckListenServerEvents.setSelected( configuration.LISTEN_SERVER_EVENTS );
+    myCheckUseCacheAgent.setSelected( configuration.USE_CACHE_AGENT );
+    myFldCacheAgent.setText( configuration.CACHE_AGENT );
+    myFldCacheAgent.setEnabled( configuration.USE_CACHE_AGENT );
   }
 
   public void apply() throws ConfigurationException
@@ -258,6 +288,18 @@ public class StarteamConfigurable implements Configurable
     boolean isChanged = isModified();
     StarteamConfiguration configuration = myProject.getComponent(StarteamConfiguration.class);
 
+    //  IDs resolved for another server address, project or view must not be
+    //  tried.
+    boolean addressChanged = !configuration.SERVER.equals(myFldServer.getText()) ||
+                             !String.valueOf(configuration.PORT).equals(myFldPort.getText().trim());
+    if (addressChanged || !configuration.PROJECT.equals(myFldProject.getText())) {
+      configuration.PROJECT_ID = StarteamMetadataCache.NO_ID;
+      configuration.VIEW_ID = StarteamMetadataCache.NO_ID;
+    }
+    else if (!configuration.VIEW.equals(myFldView.getText())) {
+      configuration.VIEW_ID = StarteamMetadataCache.NO_ID;
+    }
+
     configuration.SERVER = myFldServer.getText();
     configuration.PORT = Integer.parseInt(myFldPort.getText());
     configuration.USER = myFldUser.getText();
@@ -267,6 +309,9 @@ public class StarteamConfigurable implements Configurable
     configuration.ALTERNATIVE_WORKING_PATH = myFldWorkingPath.getText();
     configuration.LOCK_ON_CHECKOUT = myCheckLockOnCheckout.isSelected();
     configuration.UNLOCK_ON_CHECKIN = myCheckUnlockOnCheckin.isSelected(); 
+    configuration.LISTEN_SERVER_EVENTS = myCheckListenServerEvents.isSelected();
+    configuration.USE_CACHE_AGENT = myCheckUseCacheAgent.isSelected();
+    configuration.CACHE_AGENT = myFldCacheAgent.getText().trim();
 
     if( isChanged )
     {
@@ -308,7 +353,10 @@ public class StarteamConfigurable implements Configurable
                            configuration.VIEW.equals( myFldView.getText() ) &&
                            configuration.ALTERNATIVE_WORKING_PATH.equals( myFldWorkingPath.getText() ) &&
                            (configuration.LOCK_ON_CHECKOUT == myCheckLockOnCheckout.isSelected() ) &&
-                           (configuration.UNLOCK_ON_CHECKIN == myCheckUnlockOnCheckin.isSelected() ); 
+                           (configuration.UNLOCK_ON_CHECKIN == myCheckUnlockOnCheckin.isSelected() ) &&
+                           (configuration.LISTEN_SERVER_EVENTS == myCheckListenServerEvents.isSelected() ) &&
+                           (configuration.USE_CACHE_AGENT == myCheckUseCacheAgent.isSelected() ) &&
+                           configuration.CACHE_AGENT.equals( myFldCacheAgent.getText().trim() ); 
     return !equals;
   }
 }
@@ -13,9 +13,16 @@ public class StarteamConfiguration extends AbstractProjectComponent implements J
   public String PASSWORD = "";
   public String PROJECT = "";
   public String VIEW = "";
+  //  Resolved IDs of PROJECT and VIEW, NO_ID until the first connect.
+  public int PROJECT_ID = StarteamMetadataCache.NO_ID;
+  public int VIEW_ID = StarteamMetadataCache.NO_ID;
   public String ALTERNATIVE_WORKING_PATH = "";
   public boolean LOCK_ON_CHECKOUT = false;
   public boolean UNLOCK_ON_CHECKIN = false;
+  public boolean LISTEN_SERVER_EVENTS = false;
+  public boolean USE_CACHE_AGENT = false;
+  //  "host:port" or "auto" (found through MPX).
+  public String CACHE_AGENT = "";
 
   protected StarteamConfiguration(Project project) {
     super(project);
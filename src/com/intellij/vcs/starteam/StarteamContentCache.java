@@ -0,0 +1,84 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Local cache of the repository ("base") content of files, keyed by the
+ * working path and tagged with the revision the content belongs to.
+ * The cache is filled whenever the base content is fetched from the server
+ * (e.g. for the diff of a modified file) and lets the rollback restore a
+ * file without a round trip when its revision has not changed since.
+ * Entries are evicted in LRU order once the total size exceeds the budget.
+ */
+public class StarteamContentCache
+{
+  private static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+  private final long myBudget;
+  private long mySize;
+  private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+  public StarteamContentCache()             {  this( DEFAULT_BUDGET );  }
+  public StarteamContentCache( long budget ) {  myBudget = budget;  }
+
+  @Nullable
+  public synchronized byte[] get( String path, int revision )
+  {
+    Entry entry = myEntries.get( key( path ) );
+    return (entry != null && entry.revision == revision) ? entry.content : null;
+  }
+
+  public synchronized void put( String path, int revision, byte[] content )
+  {
+    //  Do not let a single huge file flush the whole cache.
+    if( content.length > myBudget / 4 )
+      return;
+
+    Entry old = myEntries.put( key( path ), new Entry( revision, content ) );
+    if( old != null )
+      mySize -= old.content.length;
+    mySize += content.length;
+
+    for( Iterator<Map.Entry<String, Entry>> it = myEntries.entrySet().iterator(); mySize > myBudget && it.hasNext(); )
+    {
+      mySize -= it.next().getValue().content.length;
+      it.remove();
+    }
+  }
+
+  public synchronized void remove( String path )
+  {
+    Entry old = myEntries.remove( key( path ) );
+    if( old != null )
+      mySize -= old.content.length;
+  }
+
+  public synchronized void clear()
+  {
+    myEntries.clear();
+    mySize = 0;
+  }
+
+  private static String key( String path )
+  {
+    path = path.replace( java.io.File.separatorChar, '/' );
+    return SystemInfo.isFileSystemCaseSensitive ? path : path.toLowerCase();
+  }
+
+  private static class Entry
+  {
+    private final int revision;
+    private final byte[] content;
+
+    private Entry( int revision, byte[] content )
+    {
+      this.revision = revision;
+      this.content = content;
+    }
+  }
+}
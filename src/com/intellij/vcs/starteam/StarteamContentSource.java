@@ -0,0 +1,29 @@
+package com.intellij.vcs.starteam;
+
+import com.starbase.starteam.File;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.OutputStream;
+
+/**
+ * Place the repository content of files is fetched from: the server itself,
+ * a cache agent near the user, or a stand-in of one.
+ */
+public interface StarteamContentSource
+{
+  String getName();
+
+  /**
+   * Checks out the tip revision of the file to <code>target</code>, or to its
+   * working location if <code>target</code> is <code>null</code>.
+   * @return <code>false</code> if the source does not have the content, so
+   *         that the next source should be tried.
+   */
+  boolean checkout( File file, @Nullable java.io.File target ) throws Exception;
+
+  /**
+   * Writes the content of the revision the item stands for to the stream.
+   * @return <code>false</code> if the source does not have the content.
+   */
+  boolean checkoutToStream( File file, OutputStream out ) throws Exception;
+}
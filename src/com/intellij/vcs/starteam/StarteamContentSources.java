@@ -0,0 +1,338 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.starbase.starteam.CheckoutManager;
+import com.starbase.starteam.CheckoutOptions;
+import com.starbase.starteam.File;
+import com.starbase.starteam.Item;
+import com.starbase.starteam.View;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetches the repository content of files from the configured sources in
+ * order - the cache agent first, if there is one, and the server last. A
+ * source which does not have the content or fails is skipped for the next
+ * one, so the server always remains the fallback.
+ * <p/>
+ * Every source is measured: requests served, misses, failures, bytes and
+ * time, so that the benefit of the agent can be seen in the log.
+ * <p/>
+ * The agent is configured as <code>host:port</code>, or <code>auto</code> for
+ * the nearest agent announced through MPX. The local stand-in serving
+ * <code>directory/itemID/revision</code> files does not update the status
+ * repository, it is not configurable and is only meant for offline tests.
+ */
+public class StarteamContentSources
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamContentSources");
+
+  @NonNls public static final String AUTO_AGENT = "auto";
+  private static final int DEFAULT_AGENT_PORT = 5201;
+
+  private final List<Measured> mySources = new ArrayList<Measured>();
+
+  /**
+   * @param agent cache agent specification, empty for none
+   */
+  public StarteamContentSources( @Nullable View view, String agent )
+  {
+    this( (view != null) ? createAgent( view, agent.trim() ) : null, new ServerSource() );
+  }
+
+  /**
+   * @param agent  source tried first, e.g. a {@link FileAgentSource}
+   * @param server the last resort, which always has the content
+   */
+  StarteamContentSources( @Nullable StarteamContentSource agent, StarteamContentSource server )
+  {
+    if( agent != null )
+      mySources.add( new Measured( agent ) );
+    mySources.add( new Measured( server ) );
+  }
+
+  @Nullable
+  private static StarteamContentSource createAgent( View view, String agent )
+  {
+    if( agent.length() == 0 )
+      return null;
+    if( agent.equals( AUTO_AGENT ) )
+      return new CacheAgentSource( view, null, 0 );
+
+    int colon = agent.lastIndexOf( ':' );
+    try
+    {
+      return (colon < 0) ? new CacheAgentSource( view, agent, DEFAULT_AGENT_PORT )
+                         : new CacheAgentSource( view, agent.substring( 0, colon ), Integer.parseInt( agent.substring( colon + 1 ) ) );
+    }
+    catch( NumberFormatException e )
+    {
+      LOG.info( "invalid cache agent port, agent is not used: " + agent );
+      return null;
+    }
+  }
+
+  public void checkout( File file, @Nullable java.io.File target ) throws Exception
+  {
+    for( int i = 0; i < mySources.size(); i++ )
+    {
+      Measured source = mySources.get( i );
+      boolean last = (i == mySources.size() - 1);
+      long started = System.currentTimeMillis();
+      try
+      {
+        if( source.source.checkout( file, target ) )
+        {
+          java.io.File written = (target != null) ? target : new java.io.File( file.getFullName() );
+          source.served( written.length(), System.currentTimeMillis() - started );
+          return;
+        }
+        source.missed();
+      }
+      catch( Exception e )
+      {
+        source.failed();
+        if( last )
+          throw e;
+        LOG.info( source.source.getName() + " failed, falling back: " + StarteamVcs.getMessage( e ) );
+      }
+    }
+  }
+
+  public void checkoutToStream( File file, OutputStream out ) throws Exception
+  {
+    for( int i = 0; i < mySources.size(); i++ )
+    {
+      Measured source = mySources.get( i );
+      boolean last = (i == mySources.size() - 1);
+      long started = System.currentTimeMillis();
+      CountingStream counter = new CountingStream( out );
+      try
+      {
+        if( source.source.checkoutToStream( file, counter ) )
+        {
+          source.served( counter.count, System.currentTimeMillis() - started );
+          return;
+        }
+        source.missed();
+      }
+      catch( Exception e )
+      {
+        source.failed();
+        //  A partial write can not be taken back from the caller's stream.
+        if( last || counter.count > 0 )
+          throw e;
+        LOG.info( source.source.getName() + " failed, falling back: " + StarteamVcs.getMessage( e ) );
+      }
+    }
+  }
+
+  public String getStatistics()
+  {
+    StringBuilder buf = new StringBuilder();
+    for( Measured source : mySources )
+    {
+      if( buf.length() > 0 )
+        buf.append( "; " );
+      buf.append( source );
+    }
+    return buf.toString();
+  }
+
+  private static class Measured
+  {
+    private final StarteamContentSource source;
+    private int served;
+    private int missed;
+    private int failed;
+    private long bytes;
+    private long millis;
+
+    private Measured( StarteamContentSource source )
+    {
+      this.source = source;
+    }
+
+    synchronized void served( long bytes, long millis )
+    {
+      served++;
+      this.bytes += bytes;
+      this.millis += millis;
+    }
+
+    synchronized void missed()  {  missed++;  }
+    synchronized void failed()  {  failed++;  }
+
+    public synchronized String toString()
+    {
+      return source.getName() + ": " + served + " served (" + (bytes >> 10) + "K in " + millis + "ms), " +
+             missed + " missed, " + failed + " failed";
+    }
+  }
+
+  private static class CountingStream extends FilterOutputStream
+  {
+    private long count;
+
+    private CountingStream( OutputStream out )  {  super( out );  }
+
+    public void write( int b ) throws IOException
+    {
+      out.write( b );
+      count++;
+    }
+
+    public void write( byte[] b, int off, int len ) throws IOException
+    {
+      out.write( b, off, len );
+      count += len;
+    }
+  }
+
+  //---------------------------------------------------------------------------
+  //  Sources
+  //---------------------------------------------------------------------------
+
+  /**
+   * The server itself - it always has the content.
+   */
+  private static class ServerSource implements StarteamContentSource
+  {
+    public String getName()  {  return "server";  }
+
+    public boolean checkout( File file, @Nullable java.io.File target ) throws Exception
+    {
+      if( target != null )
+        file.checkoutTo( target, Item.LockType.UNCHANGED, true, false, true );
+      else
+        file.checkout( Item.LockType.UNCHANGED, true, false, true );
+      return true;
+    }
+
+    public boolean checkoutToStream( File file, OutputStream out ) throws Exception
+    {
+      file.checkoutToStream( out, Item.LockType.UNCHANGED, false );
+      return true;
+    }
+  }
+
+  /**
+   * StarTeam Cache Agent, addressed directly or found through MPX.
+   */
+  private static class CacheAgentSource implements StarteamContentSource
+  {
+    private final View view;
+    private final String address;
+    private final int port;
+
+    private CacheAgentSource( View view, @Nullable String address, int port )
+    {
+      this.view = view;
+      this.address = address;
+      this.port = port;
+    }
+
+    public String getName()  {  return "cache agent " + ((address != null) ? address + ":" + port : AUTO_AGENT);  }
+
+    /**
+     * @param updateStatus whether the file is checked out as the working
+     *                     file; content fetched into streams and temporary
+     *                     files must leave the status repository alone.
+     */
+    private CheckoutManager createManager( boolean updateStatus )
+    {
+      CheckoutOptions options = new CheckoutOptions( view );
+      if( address != null )
+      {
+        options.setCacheAgentAddress( address );
+        options.setCacheAgentPort( port );
+      }
+      else
+        options.setMPXCacheAgentEnabled( true );
+      options.setLockType( Item.LockType.UNCHANGED );
+      options.setTimeStampNow( true );
+      options.setUpdateStatus( updateStatus );
+      return new CheckoutManager( view, options );
+    }
+
+    public boolean checkout( File file, @Nullable java.io.File target ) throws Exception
+    {
+      CheckoutManager manager = createManager( true );
+      if( target != null )
+        manager.checkoutTo( file, target );
+      else
+        manager.checkout( file );
+      return true;
+    }
+
+    public boolean checkoutToStream( File file, OutputStream out ) throws Exception
+    {
+      java.io.File tmp = FileUtil.createTempFile( "starteam", ".agent" );
+      try
+      {
+        createManager( false ).checkoutTo( file, tmp );
+        out.write( FileUtil.loadFileBytes( tmp ) );
+        return true;
+      }
+      finally
+      {
+        FileUtil.delete( tmp );
+      }
+    }
+  }
+
+  /**
+   * Local file-backed stand-in for an agent: serves the content stored as
+   * <code>root/itemID/revision</code>, misses everything else. Checking out
+   * through it does not update the StarTeam status repository.
+   */
+  static class FileAgentSource implements StarteamContentSource
+  {
+    private final java.io.File root;
+
+    FileAgentSource( java.io.File root )
+    {
+      this.root = root;
+    }
+
+    public String getName()  {  return "file agent " + root;  }
+
+    /**
+     * @return the path of the content under the root, "itemID/revision".
+     */
+    String keyOf( File file )
+    {
+      return file.getID() + "/" + file.getRevisionNumber();
+    }
+
+    private java.io.File contentOf( File file )
+    {
+      return new java.io.File( root, keyOf( file ) );
+    }
+
+    public boolean checkout( File file, @Nullable java.io.File target ) throws Exception
+    {
+      java.io.File content = contentOf( file );
+      if( !content.isFile() )
+        return false;
+      FileUtil.copy( content, (target != null) ? target : new java.io.File( file.getFullName() ) );
+      return true;
+    }
+
+    public boolean checkoutToStream( File file, OutputStream out ) throws Exception
+    {
+      java.io.File content = contentOf( file );
+      if( !content.isFile() )
+        return false;
+      out.write( FileUtil.loadFileBytes( content ) );
+      return true;
+    }
+  }
+}
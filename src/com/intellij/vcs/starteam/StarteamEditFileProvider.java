@@ -8,6 +8,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.io.ReadOnlyAttributeUtil;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -27,6 +29,7 @@ public class StarteamEditFileProvider implements EditFileProvider
 
   public void editFiles( VirtualFile[] files )
   {
+    List<VirtualFile> touched = new ArrayList<VirtualFile>( files.length );
     for( final VirtualFile file : files )
     {
       try
@@ -45,7 +48,8 @@ public class StarteamEditFileProvider implements EditFileProvider
           }
         } });
       }
-      file.refresh( true, false );
+      touched.add( file );
     }
+    StarteamVfsRefresher.refreshAndMarkDirty( host.getProject(), touched );
   }
 }
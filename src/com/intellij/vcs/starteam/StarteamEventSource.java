@@ -0,0 +1,42 @@
+package com.intellij.vcs.starteam;
+
+import com.starbase.starteam.Server;
+import com.starbase.starteam.View;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Source of the item events of one view: items added, changed, moved or
+ * removed in the repository by anybody. Events carry the working paths of the
+ * items, so that subscribers need not know where the events come from - the
+ * server's message broker or the in-process stand-in.
+ */
+public interface StarteamEventSource
+{
+  enum Kind {  ADDED, CHANGED, MOVED, REMOVED  }
+
+  /**
+   * Creates the source for the view a host has connected to. The host is
+   * given the factory on construction, the server's broker by default.
+   */
+  interface Factory
+  {
+    StarteamEventSource create( Server server, View view );
+  }
+
+  interface Listener
+  {
+    /**
+     * @param oldPath path before the event, <code>null</code> for additions
+     * @param newPath path after the event, <code>null</code> for removals
+     */
+    void itemEvent( Kind kind, boolean isDir, @Nullable String oldPath, @Nullable String newPath );
+  }
+
+  /**
+   * @return <code>false</code> if the events are not available, e.g. the
+   *         server has no message broker.
+   */
+  boolean subscribe( Listener listener );
+
+  void unsubscribe( Listener listener );
+}
@@ -0,0 +1,150 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
+import com.intellij.vcsUtil.VcsUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Turns the item events of the view into dirty paths: only the items the
+ * events name are marked dirty, instead of the whole project. The cached
+ * items, listings and statuses of the affected folders are dropped first, so
+ * that the next status pass asks the server. Events come on the thread of the
+ * event source, which is not to be held while the index talks to the server -
+ * they are handled on a pooled thread.
+ * <p/>
+ * Paths outside the working folder of the view are ignored: a broker may
+ * deliver the events of other views on the same server, and an item moved
+ * out of the view is only gone from the old path.
+ */
+class StarteamEventSubscriber implements StarteamEventSource.Listener
+{
+  /**
+   * What the events act on - the host and the project's dirty scope in the
+   * IDE, a stand-in in tests.
+   */
+  interface Target
+  {
+    boolean isDisposed();
+
+    boolean isUnderRootFolder( String path );
+
+    void forgetFolder( String path );
+
+    void invalidateStatus( String path );
+
+    void invalidateFolderItems( String folderPath );
+
+    void fileDirty( String path );
+
+    void dirDirtyRecursively( String path );
+  }
+
+  private final Target target;
+  private final Executor executor;
+
+  StarteamEventSubscriber( StarteamVcs host, Project project )
+  {
+    this( new VcsTarget( host, project ), new Executor()
+    {
+      public void execute( Runnable command )  {  ApplicationManager.getApplication().executeOnPooledThread( command );  }
+    });
+  }
+
+  StarteamEventSubscriber( Target target, Executor executor )
+  {
+    this.target = target;
+    this.executor = executor;
+  }
+
+  public void itemEvent( StarteamEventSource.Kind kind, final boolean isDir, @Nullable final String oldPath, @Nullable final String newPath )
+  {
+    if( target.isDisposed() )
+      return;
+
+    executor.execute( new Runnable()
+    {
+      public void run()  {  handle( isDir, oldPath, newPath );  }
+    });
+  }
+
+  private void handle( boolean isDir, @Nullable String oldPath, @Nullable String newPath )
+  {
+    if( target.isDisposed() )
+      return;
+
+    oldPath = inView( oldPath );
+    newPath = inView( newPath );
+    if( newPath != null && newPath.equals( oldPath ) )
+      newPath = null;
+
+    invalidate( isDir, oldPath );
+    invalidate( isDir, newPath );
+
+    markDirty( isDir, oldPath );
+    markDirty( isDir, newPath );
+  }
+
+  @Nullable
+  private String inView( @Nullable String path )
+  {
+    return (path != null && target.isUnderRootFolder( path )) ? path : null;
+  }
+
+  private void invalidate( boolean isDir, @Nullable String path )
+  {
+    if( path == null )
+      return;
+
+    if( isDir )
+      target.forgetFolder( path );
+    else
+      target.invalidateStatus( path );
+
+    String parent = new java.io.File( path ).getParent();
+    if( parent != null )
+      target.invalidateFolderItems( parent );
+  }
+
+  private void markDirty( boolean isDir, @Nullable String path )
+  {
+    if( path == null )
+      return;
+
+    if( isDir )
+      target.dirDirtyRecursively( path );
+    else
+      target.fileDirty( path );
+  }
+
+  private static class VcsTarget implements Target
+  {
+    private final StarteamVcs host;
+    private final Project project;
+
+    private VcsTarget( StarteamVcs host, Project project )
+    {
+      this.host = host;
+      this.project = project;
+    }
+
+    public boolean isDisposed()                         {  return project.isDisposed();  }
+    public boolean isUnderRootFolder( String path )     {  return host.isUnderRootFolder( path );  }
+    public void forgetFolder( String path )             {  host.getViewIndex().forget( path );  }
+    public void invalidateStatus( String path )         {  host.invalidateStatus( path );  }
+    public void invalidateFolderItems( String folderPath )  {  host.invalidateFolderItems( folderPath );  }
+
+    public void fileDirty( String path )
+    {
+      VcsDirtyScopeManager.getInstance( project ).fileDirty( VcsUtil.getFilePath( path, false ) );
+    }
+
+    public void dirDirtyRecursively( String path )
+    {
+      VcsDirtyScopeManager.getInstance( project ).dirDirtyRecursively( VcsUtil.getFilePath( path, true ) );
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.vcsUtil.VcsUtil;
+import com.starbase.starteam.File;
+import com.starbase.starteam.Folder;
+import com.starbase.starteam.Item;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds out what has changed in the repository since the previous refresh,
+ * folder by folder. For every folder the session has held items for, the IDs
+ * of its files and subfolders and the latest modification time are
+ * remembered; a refresh populates the files anew and reports the files
+ * modified since, and the folders whose contents were added to or removed
+ * from. Folders the item cache has evicted since are looked up again by
+ * path, so that a folder is not forgotten because it was not used lately.
+ * <p/>
+ * Folders never looked at before have nothing to compare with; the first
+ * refresh of the session only records them and reports <code>null</code>.
+ */
+class StarteamFolderChanges
+{
+  private final TIntObjectHashMap<Mark> myMarks = new TIntObjectHashMap<Mark>();
+
+  /**
+   * @return paths changed since the previous call, or <code>null</code> if
+   *         there was no previous call and everything has to be rescanned.
+   */
+  @Nullable
+  public synchronized List<FilePath> collect( StarteamVcs host, @Nullable ProgressIndicator indicator )
+  {
+    StarteamItemCache cache = host.getItemCache();
+    if( cache == null )
+      return null;
+
+    boolean baseline = myMarks.isEmpty();
+    List<FilePath> changed = new ArrayList<FilePath>();
+    final TIntObjectHashMap<Mark> unseen = new TIntObjectHashMap<Mark>();
+    myMarks.forEachEntry( new TIntObjectProcedure<Mark>()
+    {
+      public boolean execute( int id, Mark mark )
+      {
+        unseen.put( id, mark );
+        return true;
+      }
+    });
+
+    for( Folder folder : cache.getFolders() )
+    {
+      if( !host.isInView( folder ) )
+        continue;
+      unseen.remove( folder.getID() );
+      compare( host, folder, indicator, changed );
+    }
+
+    //  Tracked before but evicted from the cache since.
+    for( Object value : unseen.getValues() )
+    {
+      Mark old = (Mark)value;
+      if( indicator != null )
+        indicator.checkCanceled();
+
+      Folder folder = host.findFolder( old.path );
+      if( folder == null || folder.getID() != old.id )
+      {
+        //  Removed or replaced, the parent's mark reports the change.
+        myMarks.remove( old.id );
+        changed.add( VcsUtil.getFilePath( old.path, true ) );
+        continue;
+      }
+      compare( host, folder, indicator, changed );
+    }
+    return baseline ? null : changed;
+  }
+
+  private void compare( StarteamVcs host, Folder folder, @Nullable ProgressIndicator indicator, List<FilePath> changed )
+  {
+    if( indicator != null )
+    {
+      indicator.checkCanceled();
+      indicator.setText2( folder.getPath() );
+    }
+
+    Mark old = myMarks.get( folder.getID() );
+    host.refreshFolder( folder );
+    Mark mark;
+    StarteamItemCache pinned = host.pinItems();
+    try
+    {
+      File[] files = host.getFiles( folder, StarteamProjection.POLL );
+      mark = new Mark( folder.getID(), folder.getPath(), idsOf( files ), idsOf( host.getSubFolders( folder ) ) );
+
+      for( File file : files )
+      {
+        long modified = file.getModifiedTime().getLongValue();
+        mark.modified = Math.max( mark.modified, modified );
+        if( old != null && modified > old.modified )
+          changed.add( VcsUtil.getFilePath( file.getFullName(), false ) );
+      }
+    }
+    finally
+    {
+      StarteamVcs.unpinItems( pinned );
+    }
+
+    //  Additions and removals show up in the member IDs only; a removal and
+    //  an addition between two refreshes leave the counts as they were.
+    if( old != null && (!Arrays.equals( old.files, mark.files ) || !Arrays.equals( old.folders, mark.folders )) )
+      changed.add( VcsUtil.getFilePath( folder.getPath(), true ) );
+
+    myMarks.put( folder.getID(), mark );
+  }
+
+  private static int[] idsOf( Item[] items )
+  {
+    int[] ids = new int[ items.length ];
+    for( int i = 0; i < items.length; i++ )
+      ids[ i ] = items[ i ].getID();
+    Arrays.sort( ids );
+    return ids;
+  }
+
+  public synchronized void clear()
+  {
+    myMarks.clear();
+  }
+
+  private static class Mark
+  {
+    private final int id;
+    private final String path;
+    private final int[] files;
+    private final int[] folders;
+    private long modified;
+
+    private Mark( int id, String path, int[] files, int[] folders )
+    {
+      this.id = id;
+      this.path = path;
+      this.files = files;
+      this.folders = folders;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.starbase.starteam.File;
+import com.starbase.starteam.Folder;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived lookup index over the StarTeam folder tree, meant to live for a
+ * single batch operation. Every folder is resolved once - from its already
+ * resolved parent rather than from the view root - and the direct children of
+ * every folder touched are listed once, so resolving many items in the same
+ * folder costs a hash lookup each instead of a walk from the root.
+ * The index is safe to use from several worker threads at once.
+ */
+class StarteamFolderIndex
+{
+  private final StarteamVcs host;
+  private final StarteamProjection projection;
+  private final Map<String, Resolved> myFolders = new ConcurrentHashMap<String, Resolved>();
+  private final Map<String, Map<String, Folder>> mySubFolders = new ConcurrentHashMap<String, Map<String, Folder>>();
+  private final Map<String, Map<String, File>> myFiles = new ConcurrentHashMap<String, Map<String, File>>();
+
+  StarteamFolderIndex( StarteamVcs host, StarteamProjection projection )
+  {
+    this.host = host;
+    this.projection = projection;
+  }
+
+  @Nullable
+  public Folder folder( String path )
+  {
+    String key = key( path );
+    Resolved resolved = myFolders.get( key );
+    if( resolved == null )
+    {
+      resolved = new Resolved( resolveFolder( path ) );
+      myFolders.put( key, resolved );
+    }
+    return resolved.folder;
+  }
+
+  @Nullable
+  public File file( String path )
+  {
+    String parent = parentOf( path );
+    return (parent != null) ? files( parent ).get( nameKey( nameOf( path ) ) ) : null;
+  }
+
+  /**
+   * @return files of the folder keyed by the (case normalized) name.
+   */
+  public Map<String, File> files( String folderPath )
+  {
+    String key = key( folderPath );
+    Map<String, File> files = myFiles.get( key );
+    if( files == null )
+    {
+      Folder folder = folder( folderPath );
+      if( folder == null )
+        return Collections.emptyMap();
+
+      files = new ConcurrentHashMap<String, File>();
+      for( File file : host.getFiles( folder, projection ) )
+        files.put( nameKey( file.getName() ), file );
+      myFiles.put( key, files );
+    }
+    return files;
+  }
+
+  /**
+   * Drops everything known about the path, e.g. after the item is removed.
+   * The listings of the parent folder are kept, less the item itself, so
+   * that its other items are still resolved without another round trip.
+   */
+  public void forget( String path )
+  {
+    String key = key( path );
+    myFolders.remove( key );
+    mySubFolders.remove( key );
+    myFiles.remove( key );
+
+    String parent = parentOf( path );
+    if( parent != null )
+    {
+      String name = nameKey( nameOf( path ) );
+      Map<String, Folder> subFolders = mySubFolders.get( key( parent ) );
+      if( subFolders != null )
+        subFolders.remove( name );
+      Map<String, File> files = myFiles.get( key( parent ) );
+      if( files != null )
+        files.remove( name );
+    }
+  }
+
+  @Nullable
+  private Folder resolveFolder( String path )
+  {
+    String parentPath = parentOf( path );
+
+    //  The root folder (and anything above it) is left to the host which
+    //  knows about the alternative working path.
+    if( parentPath == null || !host.isUnderRootFolder( parentPath ) )
+      return host.findFolder( path );
+
+    Folder parent = folder( parentPath );
+    if( parent == null )
+      return null;
+
+    Folder folder = subFolders( parentPath, parent ).get( nameKey( nameOf( path ) ) );
+    if( folder != null )
+      host.bindWorkingPath( folder, path );
+    return folder;
+  }
+
+  private Map<String, Folder> subFolders( String path, Folder folder )
+  {
+    String key = key( path );
+    Map<String, Folder> subFolders = mySubFolders.get( key );
+    if( subFolders == null )
+    {
+      subFolders = new ConcurrentHashMap<String, Folder>();
+      for( Folder sub : host.getSubFolders( folder ) )
+        subFolders.put( nameKey( sub.getName() ), sub );
+      mySubFolders.put( key, subFolders );
+    }
+    return subFolders;
+  }
+
+  private static String key( String path )
+  {
+    path = path.replace( '/', java.io.File.separatorChar );
+    if( path.length() > 1 && path.endsWith( java.io.File.separator ) )
+      path = path.substring( 0, path.length() - 1 );
+    return nameKey( path );
+  }
+
+  static String nameKey( String name )
+  {
+    return SystemInfo.isFileSystemCaseSensitive ? name : name.toLowerCase();
+  }
+
+  @Nullable
+  private static String parentOf( String path )
+  {
+    return new java.io.File( path ).getParent();
+  }
+
+  private static String nameOf( String path )
+  {
+    return new java.io.File( path ).getName();
+  }
+
+  private static class Resolved
+  {
+    private final Folder folder;
+
+    private Resolved( @Nullable Folder folder )
+    {
+      this.folder = folder;
+    }
+  }
+}
@@ -17,7 +17,6 @@
 package com.intellij.vcs.starteam;
 
 import com.intellij.openapi.actionSystem.AnAction;
-import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vcs.history.*;
@@ -30,7 +29,7 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
-import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -66,7 +65,7 @@ public class StarteamHistoryProvider implements VcsHistoryProvider
     final File file;
     try
     {
-      file = host.findFile( filePath.getPath() );
+      file = host.findFile( filePath.getPath(), StarteamProjection.HISTORY );
     }
     catch( CommandException e )
     {
@@ -154,17 +153,26 @@ public class StarteamHistoryProvider implements VcsHistoryProvider
     public String getCommitMessage() { return item.getComment(); }
     public String getAuthor()
     {
-      String userName = StarteamBundle.message( "unknown.author.name" );
-      try
+      String userName = null;
+      StarteamMetadataCache.ServerMetadata metadata = host.getMetadata();
+      if( metadata != null )
       {
-        User user = item.getServer().getUser( item.getModifiedBy() );
-        userName = user.getName();
+        //  A history lists few authors many times, ask the server once.
+        userName = metadata.getUserName( item.getServer(), item.getModifiedBy() );
       }
-      catch( Exception e ){
-        //  Nothing to do - try/catch here is to overcome internal Starteam SDK
-        //  problem - it throws NPE inside <server.getUser(int)>.
+      else
+      {
+        try
+        {
+          User user = item.getServer().getUser( item.getModifiedBy() );
+          userName = user.getName();
+        }
+        catch( Exception e ){
+          //  Nothing to do - try/catch here is to overcome internal Starteam SDK
+          //  problem - it throws NPE inside <server.getUser(int)>.
+        }
       }
-      return userName;
+      return (userName != null) ? userName : StarteamBundle.message( "unknown.author.name" );
     }
 
     public void loadContent() throws VcsException
@@ -173,14 +181,11 @@ public class StarteamHistoryProvider implements VcsHistoryProvider
       {
         try
         {
-          File stFile = (File)item;
-
-          java.io.File file = new java.io.File(
-            FileUtil.getTempDirectory() + java.io.File.separator + Long.toString(System.currentTimeMillis()) + stFile.getName());
-          stFile.checkoutTo(file, Item.LockType.UNCHANGED, true, true, false);
-          contents = FileUtil.loadFileBytes( file );
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          host.getContentSources().checkoutToStream( (File)item, out );
+          contents = out.toByteArray();
         }
-        catch( IOException e )
+        catch( Exception e )
         {
           throw new VcsException( e );
         }
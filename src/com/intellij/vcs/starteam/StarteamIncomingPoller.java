@@ -0,0 +1,265 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.concurrency.JobScheduler;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.FileStatusManager;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.starbase.starteam.File;
+import com.starbase.starteam.Folder;
+import com.starbase.starteam.Status;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the server in the background for files changed in the repository
+ * since the last poll, and keeps the set of working files which are out of
+ * date; {@link StarteamOutOfDateDecorator} marks them in the project view.
+ * Files entering or leaving the set have their cached statuses invalidated
+ * and their decorations updated, and are marked dirty so that the change
+ * list catches up with those which need merging.
+ * <p/>
+ * Only the folders the session holds items for are polled - those the status
+ * passes and the operations have touched. The SDK has no query for the items
+ * modified since a given time, so every poll populates the file items of
+ * those folders anew, in full; only the status reads are limited to the
+ * files modified after the watermark (the latest modification time seen so
+ * far) or known to be out of date.
+ * <p/>
+ * The interval adapts: it grows with the time a poll takes, so a slow server
+ * or link is polled less often; it stretches while the IDE is in the
+ * background; it shrinks again while polls keep finding changes. Every delay
+ * is jittered so that IDEs started together do not poll in lockstep.
+ */
+class StarteamIncomingPoller
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamIncomingPoller");
+
+  private static final long MIN_INTERVAL = 30 * 1000;
+  private static final long BASE_INTERVAL = 2 * 60 * 1000;
+  private static final long MAX_INTERVAL = 15 * 60 * 1000;
+  private static final int LATENCY_FACTOR = 20;
+  private static final int INACTIVE_FACTOR = 4;
+  private static final double JITTER = 0.2;
+
+  private final StarteamVcs host;
+  private final Project project;
+  private final Random random = new Random();
+
+  private final TIntHashSet outOfDate = new TIntHashSet();
+  private long watermark;
+  private long interval = BASE_INTERVAL;
+  private ScheduledFuture<?> next;
+  private boolean running;
+
+  StarteamIncomingPoller( StarteamVcs host, Project project )
+  {
+    this.host = host;
+    this.project = project;
+  }
+
+  public synchronized void start()
+  {
+    if( running )
+      return;
+    running = true;
+    schedule();
+  }
+
+  public synchronized void stop()
+  {
+    running = false;
+    if( next != null )
+      next.cancel( false );
+    next = null;
+  }
+
+  public synchronized boolean isOutOfDate( String path )
+  {
+    int id = host.getPathTable().find( path );
+    return id != PathTable.NONE && outOfDate.contains( id );
+  }
+
+  private synchronized void schedule()
+  {
+    if( !running )
+      return;
+
+    long delay = jitter( nextInterval() );
+    next = JobScheduler.getScheduler().schedule( new Runnable()
+    {
+      public void run()
+      {
+        //  Scheduler threads are not for server round trips.
+        ApplicationManager.getApplication().executeOnPooledThread( new Runnable()
+          {  public void run() {  pollAndReschedule();  }  });
+      }
+    }, delay, TimeUnit.MILLISECONDS );
+  }
+
+  private long nextInterval()
+  {
+    long result = interval;
+    if( !ApplicationManager.getApplication().isActive() )
+      result *= INACTIVE_FACTOR;
+    return Math.min( result, MAX_INTERVAL );
+  }
+
+  private long jitter( long delay )
+  {
+    return (long)(delay * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+  }
+
+  private void pollAndReschedule()
+  {
+    try
+    {
+      if( !project.isDisposed() && host.isActivated() )
+        poll();
+    }
+    catch( RuntimeException e )
+    {
+      //  Connection problems are for the user actions to report.
+      LOG.debug( e );
+    }
+    finally
+    {
+      schedule();
+    }
+  }
+
+  private void poll()
+  {
+    StarteamItemCache cache = host.getItemCache();
+    if( cache == null )
+      return;
+
+    long started = System.currentTimeMillis();
+    long newWatermark = watermark;
+    TIntHashSet nowOutOfDate = new TIntHashSet();
+    TIntHashSet checked = new TIntHashSet();
+
+    TIntHashSet wasOutOfDate;
+    synchronized( this ) {  wasOutOfDate = new TIntHashSet( outOfDate.toArray() );  }
+
+    for( Folder folder : cache.getFolders() )
+    {
+      //  The session may hold folders of other projects' views.
+      if( !host.isInView( folder ) )
+        continue;
+
+      host.refreshFolder( folder );
+      StarteamItemCache pinned = host.pinItems();
+      try
+      {
+        for( File file : host.getFiles( folder, StarteamProjection.POLL ) )
+        {
+          long modified = file.getModifiedTime().getLongValue();
+          newWatermark = Math.max( newWatermark, modified );
+
+          String path = file.getFullName();
+          int id = host.getPathTable().find( path );
+          if( modified <= watermark && (id == PathTable.NONE || !wasOutOfDate.contains( id )) )
+            continue;
+
+          int status = file.getStatus();
+          if( id == PathTable.NONE )
+            id = host.getPathTable().intern( path );
+          checked.add( id );
+          if( status == Status.OUTOFDATE || status == Status.MERGE )
+            nowOutOfDate.add( id );
+        }
+      }
+      finally
+      {
+        StarteamVcs.unpinItems( pinned );
+      }
+    }
+
+    List<VirtualFile> changed = apply( checked, nowOutOfDate );
+    watermark = newWatermark;
+    adapt( System.currentTimeMillis() - started, !changed.isEmpty() );
+
+    if( !changed.isEmpty() && !project.isDisposed() )
+    {
+      if( LOG.isDebugEnabled() )
+        LOG.debug( changed.size() + " files changed their out of date state, next poll in " + interval + "ms" );
+      VcsDirtyScopeManager.getInstance( project ).filesDirty( changed, null );
+      updateDecorations( changed );
+    }
+  }
+
+  private void updateDecorations( final List<VirtualFile> changed )
+  {
+    ApplicationManager.getApplication().invokeLater( new Runnable()
+    {
+      public void run()
+      {
+        if( project.isDisposed() )
+          return;
+        FileStatusManager manager = FileStatusManager.getInstance( project );
+        for( VirtualFile file : changed )
+          manager.fileStatusChanged( file );
+      }
+    });
+  }
+
+  /**
+   * Updates the set for the files checked by the poll.
+   * @return files which entered or left the set.
+   */
+  private List<VirtualFile> apply( TIntHashSet checked, TIntHashSet nowOutOfDate )
+  {
+    List<VirtualFile> changed = new ArrayList<VirtualFile>();
+    synchronized( this )
+    {
+      for( TIntIterator it = checked.iterator(); it.hasNext(); )
+      {
+        int id = it.next();
+        boolean was = outOfDate.contains( id );
+        boolean is = nowOutOfDate.contains( id );
+        if( was == is )
+          continue;
+
+        if( is )  outOfDate.add( id );
+        else      outOfDate.remove( id );
+
+        host.getStatusTable().invalidate( id );
+        VirtualFile file = findFile( host.getPathTable().getPath( id ) );
+        if( file != null )
+          changed.add( file );
+      }
+    }
+    return changed;
+  }
+
+  @Nullable
+  private static VirtualFile findFile( String path )
+  {
+    return LocalFileSystem.getInstance().findFileByPath( path.replace( java.io.File.separatorChar, '/' ) );
+  }
+
+  /**
+   * Slow polls make the interval longer, polls finding changes make it
+   * shorter, quiet polls let it drift back to the base.
+   */
+  private synchronized void adapt( long latency, boolean foundChanges )
+  {
+    long target = Math.max( BASE_INTERVAL, latency * LATENCY_FACTOR );
+    if( foundChanges )
+      interval = Math.max( MIN_INTERVAL, Math.max( interval / 2, latency * LATENCY_FACTOR ) );
+    else
+      interval = (interval + target) / 2;
+    interval = Math.min( interval, MAX_INTERVAL );
+  }
+}
@@ -0,0 +1,273 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.starbase.starteam.Folder;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the number of SDK file items held in memory within a budget. Once a
+ * folder's items are populated, the SDK keeps them reachable from the view
+ * for as long as the view lives, so a full update (or a status pass over a
+ * large project) would otherwise leave the whole item graph on the heap.
+ * <p/>
+ * Every folder whose file items are populated is registered here; when the
+ * total number of items exceeds the budget, the items of the least recently
+ * used folders are discarded. The SDK populates them again on the next
+ * access. Only file items are discarded - folder items keep the tree intact
+ * for the lookups, and they are few in comparison. Items handed out to an
+ * operation must not be discarded under it, so while any operation has the
+ * cache {@link #pin pinned} the eviction waits until the last one is done.
+ * <p/>
+ * The cache is also the population layer for file items: a folder's direct
+ * children are populated on the first access only, with the properties the
+ * caller asks for, and widened later if another caller needs more. Items are
+ * refreshed from the server on the next access once they are older than
+ * {@link #MAX_AGE} or were invalidated.
+ */
+public class StarteamItemCache
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamItemCache");
+  private static final int DEFAULT_BUDGET = 50000;
+  private static final long MAX_AGE = 5 * 60 * 1000;
+
+  private final int myBudget;
+  private final String myFileType;
+  private final LinkedHashMap<Integer, Entry> myFolders = new LinkedHashMap<Integer, Entry>( 16, 0.75f, true );
+
+  private int myItems;
+  private int myPins;
+  private long myDiscardedItems;
+  private int myDiscardedFolders;
+
+  public StarteamItemCache( String fileType )              {  this( fileType, DEFAULT_BUDGET );  }
+  public StarteamItemCache( String fileType, int budget )  {  myFileType = fileType;  myBudget = budget;  }
+
+  /**
+   * Makes sure the file items of the folder (its direct children only) are
+   * populated with at least the given properties. Properties populated
+   * already are not fetched again.
+   * @param properties properties to populate, <code>null</code> for all of them
+   */
+  public void populate( Folder folder, @Nullable String[] properties )
+  {
+    String[] missing;
+    boolean stale;
+    long now = System.currentTimeMillis();
+    synchronized( this )
+    {
+      Entry entry = myFolders.get( folder.getID() );
+      stale = (entry != null) && entry.isStale( now );
+      missing = (entry != null && !stale) ? entry.missing( properties ) : properties;
+      if( entry != null && !stale && missing != null && missing.length == 0 )
+        return;
+    }
+
+    //  Population is a server round trip, do not hold the lock meanwhile.
+    //  Stale items are refreshed with the caller's properties only.
+    boolean refreshed = (missing == null || stale);
+    if( refreshed )
+      folder.refreshItems( myFileType, missing, 0 );
+    else
+      folder.populateNow( myFileType, missing, 0 );
+
+    synchronized( this )
+    {
+      Integer key = folder.getID();
+      Entry entry = myFolders.get( key );
+      if( entry == null )
+        myFolders.put( key, entry = new Entry( folder ) );
+      if( stale )
+        entry.reset();
+      //  Widening the properties does not make the older ones any fresher.
+      if( refreshed || entry.populatedAt == 0 )
+        entry.populatedAt = now;
+      entry.populated( missing );
+    }
+  }
+
+  /**
+   * Makes the file items of the folder to be refreshed from the server on
+   * the next access, e.g. after the plugin itself has changed them. The
+   * items are not discarded, they may be in use.
+   */
+  public synchronized void invalidate( Folder folder )
+  {
+    Integer key = folder.getID();
+    Entry entry = myFolders.get( key );
+    if( entry == null )
+      myFolders.put( key, entry = new Entry( folder ) );
+    entry.stale = true;
+  }
+
+  /**
+   * Defers the eviction until the matching {@link #unpin}, so that the items
+   * an operation has got are not discarded while it runs. Pins nest.
+   */
+  public synchronized void pin()
+  {
+    myPins++;
+  }
+
+  public synchronized void unpin()
+  {
+    if( --myPins == 0 && myItems > myBudget )
+      evict( null );
+  }
+
+  /**
+   * Registers the access to the file items of the folder.
+   */
+  public synchronized void touch( Folder folder, int itemCount )
+  {
+    Integer key = folder.getID();
+    Entry entry = myFolders.get( key );
+    if( entry == null )
+      myFolders.put( key, entry = new Entry( folder ) );
+
+    myItems += itemCount - entry.items;
+    entry.items = itemCount;
+
+    if( myItems > myBudget && myPins == 0 )
+      evict( key );
+  }
+
+  /**
+   * Drops the folder from accounting, e.g. when the folder is removed.
+   */
+  public synchronized void forget( Folder folder )
+  {
+    Entry entry = myFolders.remove( folder.getID() );
+    if( entry != null )
+      myItems -= entry.items;
+  }
+
+  /**
+   * @return folders whose file items are held, least recently used first.
+   */
+  public synchronized List<Folder> getFolders()
+  {
+    List<Folder> folders = new ArrayList<Folder>( myFolders.size() );
+    for( Entry entry : myFolders.values() )
+      folders.add( entry.folder );
+    return folders;
+  }
+
+  public synchronized String getStatistics()
+  {
+    return "items held: " + myItems + " in " + myFolders.size() + " folders (budget " + myBudget + "); " +
+           "discarded: " + myDiscardedItems + " items in " + myDiscardedFolders + " folder evictions";
+  }
+
+  private void evict( @Nullable Integer keep )
+  {
+    long heapBefore = usedHeap();
+    int evicted = 0;
+    for( Iterator<Map.Entry<Integer, Entry>> it = myFolders.entrySet().iterator(); it.hasNext() && myItems > myBudget; )
+    {
+      Map.Entry<Integer, Entry> e = it.next();
+      if( keep != null && e.getKey().equals( keep ) )
+        continue;
+
+      discard( e.getValue() );
+      myItems -= e.getValue().items;
+      evicted += e.getValue().items;
+      it.remove();
+    }
+    report( evicted, heapBefore );
+  }
+
+  private void discard( Entry entry )
+  {
+    try
+    {
+      entry.folder.discardItems( myFileType, 0 );
+      myDiscardedItems += entry.items;
+      myDiscardedFolders++;
+    }
+    catch( RuntimeException e )
+    {
+      //  The folder might have gone with the view; nothing is held then.
+      LOG.debug( e );
+    }
+  }
+
+  /**
+   * The heap delta is indicative only - the items become garbage at once,
+   * but are collected whenever the VM decides to.
+   */
+  private void report( int items, long heapBefore )
+  {
+    if( LOG.isDebugEnabled() )
+      LOG.debug( "discarded " + items + " items, used heap " + (heapBefore >> 10) + "K -> " + (usedHeap() >> 10) + "K; " +
+                 getStatistics() );
+  }
+
+  private static long usedHeap()
+  {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static class Entry
+  {
+    private final Folder folder;
+    private int items;
+    private boolean allProperties;
+    private final Set<String> properties = new HashSet<String>();
+    private long populatedAt;
+    private boolean stale;
+
+    private Entry( Folder folder )
+    {
+      this.folder = folder;
+    }
+
+    @Nullable
+    private String[] missing( @Nullable String[] wanted )
+    {
+      if( allProperties )
+        return new String[ 0 ];
+      if( wanted == null )
+        return null;
+
+      List<String> missing = new ArrayList<String>();
+      for( String property : wanted )
+      {
+        if( !properties.contains( property ) )
+          missing.add( property );
+      }
+      return missing.toArray( new String[ missing.size() ] );
+    }
+
+    private boolean isStale( long now )
+    {
+      return stale || now - populatedAt > MAX_AGE;
+    }
+
+    private void reset()
+    {
+      stale = false;
+      allProperties = false;
+      properties.clear();
+    }
+
+    private void populated( @Nullable String[] populated )
+    {
+      if( populated == null )
+        allProperties = true;
+      else
+      {
+        for( String property : populated )
+          properties.add( property );
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.intellij.vcs.starteam;
+
+import com.starbase.starteam.Server;
+import com.starbase.starteam.View;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process stand-in for the server's message broker. Events published here
+ * reach the subscribers of the same broker synchronously, which lets the
+ * event-driven mode be exercised offline. Hosts get brokers through a
+ * {@link Registry} given to them as their {@link StarteamEventSource.Factory}.
+ */
+public class StarteamLocalEventBroker implements StarteamEventSource
+{
+  private final Registry myRegistry;
+  private final String myViewKey;
+  private final List<Listener> myListeners = new CopyOnWriteArrayList<Listener>();
+
+  private StarteamLocalEventBroker( Registry registry, String viewKey )
+  {
+    myRegistry = registry;
+    myViewKey = viewKey;
+  }
+
+  public boolean subscribe( Listener listener )
+  {
+    synchronized( myRegistry )
+    {
+      myListeners.add( listener );
+    }
+    return true;
+  }
+
+  public void unsubscribe( Listener listener )
+  {
+    synchronized( myRegistry )
+    {
+      //  Nobody listens any more, the next subscriber gets a new broker.
+      if( myListeners.remove( listener ) && myListeners.isEmpty() )
+        myRegistry.release( this );
+    }
+  }
+
+  public void publish( Kind kind, boolean isDir, @Nullable String oldPath, @Nullable String newPath )
+  {
+    for( Listener listener : myListeners )
+      listener.itemEvent( kind, isDir, oldPath, newPath );
+  }
+
+  /**
+   * One broker per view for all the hosts given the same registry. Brokers
+   * are dropped once their last listener unsubscribes.
+   */
+  public static class Registry implements Factory
+  {
+    private final Map<String, StarteamLocalEventBroker> myBrokers = new HashMap<String, StarteamLocalEventBroker>();
+
+    public StarteamEventSource create( Server server, View view )
+    {
+      return forView( server.getAddress() + ":" + server.getPort() + "/" + view.getID() );
+    }
+
+    /**
+     * @param viewKey any string identifying the view, e.g. "server:port/viewID"
+     */
+    public synchronized StarteamLocalEventBroker forView( String viewKey )
+    {
+      StarteamLocalEventBroker broker = myBrokers.get( viewKey );
+      if( broker == null )
+        myBrokers.put( viewKey, broker = new StarteamLocalEventBroker( this, viewKey ) );
+      return broker;
+    }
+
+    public synchronized int size()
+    {
+      return myBrokers.size();
+    }
+
+    private synchronized void release( StarteamLocalEventBroker broker )
+    {
+      if( myBrokers.get( broker.myViewKey ) == broker )
+        myBrokers.remove( broker.myViewKey );
+    }
+  }
+}
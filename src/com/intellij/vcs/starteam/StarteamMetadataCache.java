@@ -0,0 +1,205 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ApplicationComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.starbase.starteam.Project;
+import com.starbase.starteam.PropertyNames;
+import com.starbase.starteam.Server;
+import com.starbase.starteam.TypeNames;
+import com.starbase.starteam.User;
+import com.starbase.starteam.View;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server metadata which rarely changes during the IDE session: type and
+ * property names, user names, and the names and IDs of the projects and
+ * views. The metadata is shared by all projects opened in the IDE and by the
+ * configuration dialog, keyed by the server address and the user (listings
+ * depend on the access rights of the user).
+ * <p/>
+ * Type and property names are read once per session. Project and view
+ * listings are loaded on demand and reloaded lazily once they get older than
+ * {@link #LISTING_TTL}; the IDs they carry let the vcs open the configured
+ * project and view directly instead of scanning the server-wide lists.
+ */
+public class StarteamMetadataCache implements ApplicationComponent
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamMetadataCache");
+  private static final long LISTING_TTL = 10 * 60 * 1000;
+
+  public static final int NO_ID = -1;
+
+  private final Map<String, ServerMetadata> myServers = new HashMap<String, ServerMetadata>();
+
+  public static StarteamMetadataCache getInstance()
+  {
+    return ApplicationManager.getApplication().getComponent( StarteamMetadataCache.class );
+  }
+
+  @NonNls
+  @NotNull
+  public String getComponentName()  {  return "Starteam.MetadataCache";  }
+  public void initComponent()       {}
+  public void disposeComponent()    {  myServers.clear();  }
+
+  public synchronized ServerMetadata get( String server, int port, String user )
+  {
+    String key = user + "@" + server + ":" + port;
+    ServerMetadata metadata = myServers.get( key );
+    if( metadata == null )
+      myServers.put( key, metadata = new ServerMetadata() );
+    return metadata;
+  }
+
+  /**
+   * Metadata of one server as seen by one user.
+   */
+  public static class ServerMetadata
+  {
+    private TypeNames myTypeNames;
+    private PropertyNames myPropertyNames;
+    private final TIntObjectHashMap<String> myUserNames = new TIntObjectHashMap<String>();
+
+    private Listing myProjects;
+    private final Map<String, Listing> myViews = new HashMap<String, Listing>();
+
+    /**
+     * Reads the names which never change for the server, if not read yet.
+     */
+    public synchronized void load( Server server )
+    {
+      if( myTypeNames == null )
+      {
+        myTypeNames = server.getTypeNames();
+        myPropertyNames = server.getPropertyNames();
+      }
+    }
+
+    public synchronized TypeNames getTypeNames()          {  return myTypeNames;  }
+    public synchronized PropertyNames getPropertyNames()  {  return myPropertyNames;  }
+
+    /**
+     * @return name of the user, or <code>null</code> if the server does not
+     *         know such user.
+     */
+    @Nullable
+    public String getUserName( Server server, int userID )
+    {
+      synchronized( this )
+      {
+        if( myUserNames.containsKey( userID ) )
+          return myUserNames.get( userID );
+      }
+
+      String name = null;
+      try
+      {
+        User user = server.getUser( userID );
+        name = (user != null) ? user.getName() : null;
+      }
+      catch( RuntimeException e )
+      {
+        //  The SDK throws NPE inside <server.getUser(int)> for some users,
+        //  do not ask again.
+        LOG.debug( e );
+      }
+
+      synchronized( this ) {  myUserNames.put( userID, name );  }
+      return name;
+    }
+
+    //-------------------------------------------------------------------------
+    //  Projects and views
+    //-------------------------------------------------------------------------
+
+    /**
+     * @return names of the projects, or <code>null</code> if they were never
+     *         listed or the listing is outdated.
+     */
+    @Nullable
+    public synchronized String[] getProjectNames()
+    {
+      return isFresh( myProjects ) ? myProjects.names() : null;
+    }
+
+    /**
+     * @return names of the views of the project, or <code>null</code> if they
+     *         were never listed or the listing is outdated.
+     */
+    @Nullable
+    public synchronized String[] getViewNames( String project )
+    {
+      Listing views = myViews.get( project );
+      return isFresh( views ) ? views.names() : null;
+    }
+
+    /**
+     * @return last known ID of the project, or {@link #NO_ID}. IDs do not
+     *         change, so an outdated listing still gives a good guess.
+     */
+    public synchronized int getProjectID( String project )
+    {
+      return (myProjects != null) ? myProjects.id( project ) : NO_ID;
+    }
+
+    public synchronized int getViewID( String project, String view )
+    {
+      Listing views = myViews.get( project );
+      return (views != null) ? views.id( view ) : NO_ID;
+    }
+
+    public synchronized void recordProjects( Project[] projects )
+    {
+      myProjects = new Listing();
+      for( Project project : projects )
+        myProjects.ids.put( project.getName(), project.getID() );
+    }
+
+    public synchronized void recordViews( Project project, View[] views )
+    {
+      Listing listing = new Listing();
+      for( View view : views )
+        listing.ids.put( view.getName(), view.getID() );
+      myViews.put( project.getName(), listing );
+    }
+
+    /**
+     * Forces the listings to be reloaded on the next access.
+     */
+    public synchronized void invalidate()
+    {
+      myProjects = null;
+      myViews.clear();
+    }
+
+    private static boolean isFresh( @Nullable Listing listing )
+    {
+      return listing != null && System.currentTimeMillis() - listing.timestamp < LISTING_TTL;
+    }
+  }
+
+  private static class Listing
+  {
+    private final long timestamp = System.currentTimeMillis();
+    private final Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+
+    private String[] names()
+    {
+      return ids.keySet().toArray( new String[ ids.size() ] );
+    }
+
+    private int id( String name )
+    {
+      Integer id = ids.get( name );
+      return (id != null) ? id : NO_ID;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.starbase.starteam.File;
+import com.starbase.starteam.Folder;
+import com.starbase.starteam.Item;
+import com.starbase.starteam.ItemEvent;
+import com.starbase.starteam.ItemListener;
+import com.starbase.starteam.Server;
+import com.starbase.starteam.View;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Item events of the view as published by the server through the MPX message
+ * broker. File and folder events are subscribed to separately; the SDK calls
+ * the listeners on its own event thread.
+ */
+class StarteamMpxEventSource implements StarteamEventSource
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamMpxEventSource");
+
+  public static final Factory FACTORY = new Factory()
+  {
+    public StarteamEventSource create( Server server, View view )  {  return new StarteamMpxEventSource( server, view );  }
+  };
+
+  private final Server myServer;
+  private final View myView;
+  private final Map<Listener, ItemListener[]> myAdapters = new HashMap<Listener, ItemListener[]>();
+
+  StarteamMpxEventSource( Server server, View view )
+  {
+    myServer = server;
+    myView = view;
+  }
+
+  public synchronized boolean subscribe( Listener listener )
+  {
+    try
+    {
+      if( !myServer.isMPXEnabled() )
+        myServer.enableMPX();
+
+      ItemListener files = new Adapter( listener, false );
+      ItemListener folders = new Adapter( listener, true );
+      myView.addItemListener( files, myServer.typeForName( myServer.getTypeNames().FILE ) );
+      myView.addItemListener( folders, myServer.typeForName( myServer.getTypeNames().FOLDER ) );
+      myAdapters.put( listener, new ItemListener[] { files, folders } );
+      return true;
+    }
+    catch( RuntimeException e )
+    {
+      //  No broker for this server, or it is not reachable.
+      LOG.info( "server events are not available: " + StarteamVcs.getMessage( e ) );
+      return false;
+    }
+  }
+
+  public synchronized void unsubscribe( Listener listener )
+  {
+    ItemListener[] adapters = myAdapters.remove( listener );
+    if( adapters == null )
+      return;
+    try
+    {
+      myView.removeItemListener( adapters[ 0 ], myServer.typeForName( myServer.getTypeNames().FILE ) );
+      myView.removeItemListener( adapters[ 1 ], myServer.typeForName( myServer.getTypeNames().FOLDER ) );
+    }
+    catch( RuntimeException e )
+    {
+      LOG.debug( e );
+    }
+  }
+
+  private static class Adapter implements ItemListener
+  {
+    private final Listener listener;
+    private final boolean isDir;
+
+    private Adapter( Listener listener, boolean isDir )
+    {
+      this.listener = listener;
+      this.isDir = isDir;
+    }
+
+    public void itemAdded( ItemEvent e )   {  fire( Kind.ADDED, null, e.getNewItem() );  }
+    public void itemChanged( ItemEvent e ) {  fire( Kind.CHANGED, e.getOldItem(), e.getNewItem() );  }
+    public void itemMoved( ItemEvent e )   {  fire( Kind.MOVED, e.getOldItem(), e.getNewItem() );  }
+    public void itemRemoved( ItemEvent e ) {  fire( Kind.REMOVED, e.getOldItem(), null );  }
+
+    private void fire( Kind kind, @Nullable Item oldItem, @Nullable Item newItem )
+    {
+      try
+      {
+        listener.itemEvent( kind, isDir, pathOf( oldItem ), pathOf( newItem ) );
+      }
+      catch( RuntimeException e )
+      {
+        //  Never let an exception into the SDK event thread.
+        LOG.error( e );
+      }
+    }
+
+    @Nullable
+    private static String pathOf( @Nullable Item item )
+    {
+      if( item instanceof File )    return ((File)item).getFullName();
+      if( item instanceof Folder )  return ((Folder)item).getPath();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.ide.projectView.PresentationData;
+import com.intellij.ide.projectView.ProjectViewNode;
+import com.intellij.ide.projectView.ProjectViewNodeDecorator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.packageDependencies.ui.PackageDependenciesNode;
+import com.intellij.ui.ColoredTreeCellRenderer;
+
+/**
+ * Marks in the project view the working files the background poll has found
+ * out of date: unchanged locally, so the change list does not show them, but
+ * with a newer revision in the repository.
+ */
+public class StarteamOutOfDateDecorator implements ProjectViewNodeDecorator
+{
+  public void decorate( ProjectViewNode node, PresentationData data )
+  {
+    VirtualFile file = node.getVirtualFile();
+    Project project = node.getProject();
+    if( file == null || file.isDirectory() || project == null || project.isDisposed() )
+      return;
+
+    StarteamVcsAdapter adapter = StarteamVcsAdapter.getInstance( project );
+    StarteamVcs host = (adapter != null) ? adapter.getStarteamVcs() : null;
+    if( host == null || !host.isOutOfDate( file ) )
+      return;
+
+    String mark = StarteamBundle.message( "decoration.out.of.date" );
+    String location = data.getLocationString();
+    data.setLocationString( (location == null || location.length() == 0) ? mark : location + ", " + mark );
+  }
+
+  public void decorate( PackageDependenciesNode node, ColoredTreeCellRenderer cellRenderer )
+  {
+  }
+}
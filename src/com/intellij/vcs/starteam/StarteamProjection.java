@@ -0,0 +1,51 @@
+package com.intellij.vcs.starteam;
+
+import com.starbase.starteam.PropertyNames;
+
+/**
+ * Sets of file properties the callers read from the SDK items. Folders are
+ * populated with the projection of the caller instead of the SDK default set,
+ * which drags comments, descriptions and custom fields along with every item.
+ * <p/>
+ * A property left out is fetched by the SDK item by item on the first read,
+ * so a projection has to cover everything its callers touch: the status
+ * columns recorded by {@link StarteamVcs#recordStatus}, the content revision
+ * needed by a checkout and so on.
+ */
+public enum StarteamProjection
+{
+  /** Finding a file by name, e.g. before it is removed or renamed. */
+  LOOKUP,
+  /** Status passes: status, revision, MD5 and the lock holder. */
+  STATUS,
+  /** Reading the repository content: checkout, checkin, rollback. */
+  CONTENT,
+  /** Revision of the file the history is shown for. */
+  HISTORY,
+  /** Lock and unlock actions. */
+  LOCK,
+  /** Incoming changes poller: the status set plus the modification time. */
+  POLL;
+
+  public String[] getProperties( PropertyNames names )
+  {
+    switch( this )
+    {
+      case STATUS:
+        return new String[] { names.FILE_NAME, names.REVISION_NUMBER, names.FILE_CONTENT_REVISION,
+                              names.FILE_MD5, names.FILE_SIZE, names.EXCLUSIVE_LOCKER };
+      case CONTENT:
+        return new String[] { names.FILE_NAME, names.REVISION_NUMBER, names.FILE_CONTENT_REVISION,
+                              names.FILE_MD5, names.FILE_SIZE };
+      case HISTORY:
+        return new String[] { names.FILE_NAME, names.REVISION_NUMBER };
+      case LOCK:
+        return new String[] { names.FILE_NAME, names.EXCLUSIVE_LOCKER };
+      case POLL:
+        return new String[] { names.FILE_NAME, names.REVISION_NUMBER, names.FILE_CONTENT_REVISION,
+                              names.FILE_MD5, names.FILE_SIZE, names.EXCLUSIVE_LOCKER, names.MODIFIED_TIME };
+      default:
+        return new String[] { names.FILE_NAME };
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.rollback.RollbackProgressListener;
+import com.starbase.starteam.File;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Restores modified files to their repository revisions. Files are grouped by
+ * their parent folder so that the folder is resolved and populated only once
+ * per group (see {@link StarteamFolderIndex}); the groups are then processed
+ * in batches. Each file is restored from the base content cache when possible
+ * and checked out from the server otherwise.
+ */
+class StarteamRollbackEngine
+{
+  //  The batches share one SDK session, which is not known to be safe for
+  //  concurrent use: one batch at a time, off the caller's thread.
+  private static final int PARALLELISM = 1;
+  private static final int BATCH_SIZE = 64;
+
+  private final StarteamVcs host;
+
+  StarteamRollbackEngine( StarteamVcs host )
+  {
+    this.host = host;
+  }
+
+  /**
+   * @param restored receives the requests restored successfully, as they are;
+   *                 it is complete up to the cancellation if the listener
+   *                 throws {@link com.intellij.openapi.progress.ProcessCanceledException}.
+   */
+  public void rollback( List<Request> requests, final List<Request> restored, final List<VcsException> errors,
+                        @NotNull final RollbackProgressListener listener )
+  {
+    if( requests.isEmpty() )
+      return;
+
+    try
+    {
+      host.refresh();
+    }
+    catch( VcsException e )
+    {
+      errors.add( e );
+      return;
+    }
+
+    Map<String, List<Request>> byFolder = new LinkedHashMap<String, List<Request>>();
+    for( Request request : requests )
+    {
+      String parent = new java.io.File( request.path ).getParent();
+      List<Request> group = byFolder.get( parent );
+      if( group == null )
+        byFolder.put( parent, group = new ArrayList<Request>() );
+      group.add( request );
+    }
+
+    StarteamBatchRunner<Request> runner = new StarteamBatchRunner<Request>( PARALLELISM );
+    runner.run( StarteamBatchRunner.partition( byFolder, BATCH_SIZE ), new FolderRestorer(),
+                new StarteamBatchRunner.Listener<Request>() {
+                  public void processed( @Nullable Request request, @Nullable VcsException error )
+                  {
+                    if( request != null )
+                    {
+                      listener.accept( request.change );
+                      if( error == null )
+                        restored.add( request );
+                    }
+                    if( error != null )
+                      errors.add( error );
+                    listener.checkCanceled();
+                  }
+                });
+  }
+
+  private class FolderRestorer implements StarteamBatchRunner.BatchProcessor<Request>
+  {
+    private final StarteamFolderIndex index = new StarteamFolderIndex( host, StarteamProjection.CONTENT );
+
+    public void process( List<Request> batch, StarteamBatchRunner.Sink<Request> sink )
+    {
+      for( Request request : batch )
+      {
+        if( sink.isCanceled() )
+          return;
+
+        File file = index.file( request.path );
+        if( file == null )
+        {
+          sink.done( request, new VcsException( StarteamBundle.message( "exception.text.configuration.file.not.found", request.path ) ) );
+          continue;
+        }
+
+        try
+        {
+          host.restoreFile( file, request.path );
+          sink.done( request, null );
+        }
+        catch( VcsException e )
+        {
+          sink.done( request, e );
+        }
+      }
+    }
+  }
+
+  public static class Request
+  {
+    private final Change change;
+    private final String path;
+
+    /**
+     * @param change the change being rolled back, reported to the progress listener
+     * @param path   StarTeam canonic path of the file to be restored
+     */
+    public Request( Change change, String path )
+    {
+      this.change = change;
+      this.path = path;
+    }
+
+    public Change getChange() {  return change;  }
+    public String getPath()   {  return path;  }
+  }
+}
@@ -0,0 +1,293 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ApplicationComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.starbase.starteam.Server;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StarTeam sessions shared by all projects opened in the IDE. Projects
+ * configured for the same server, port and user share one logged on
+ * <code>Server</code> - one socket and one license seat - together with the
+ * caches living as long as the session: server metadata, SDK items and the
+ * repository content of files.
+ * <p/>
+ * Sessions are reference counted; the server is disconnected when the last
+ * project releases it. Projects configured for the same view share the SDK
+ * items of the view as well, so a view can be opened in one session with one
+ * working path only (see {@link Session#claimView}); a project which needs
+ * another one gets a {@link #acquirePrivate private} session.
+ * <p/>
+ * Sessions are keyed by the password as well (by its digest), so that a
+ * project configured with another password never rides on a session some
+ * other project has logged on. The logon itself is a network round trip and
+ * is not made under the registry lock; callers asking for a session being
+ * logged on wait for that logon instead.
+ */
+public class StarteamSessionRegistry implements ApplicationComponent
+{
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamSessionRegistry");
+
+  private final Map<String, Session> mySessions = new HashMap<String, Session>();
+
+  public static StarteamSessionRegistry getInstance()
+  {
+    return ApplicationManager.getApplication().getComponent( StarteamSessionRegistry.class );
+  }
+
+  @NonNls
+  @NotNull
+  public String getComponentName()  {  return "Starteam.SessionRegistry";  }
+  public void initComponent()       {}
+
+  public void disposeComponent()
+  {
+    List<Session> sessions;
+    synchronized( this )
+    {
+      sessions = new ArrayList<Session>( mySessions.values() );
+      mySessions.clear();
+    }
+    for( Session session : sessions )
+      session.disconnect();
+  }
+
+  /**
+   * Returns the session for the server, user and password, logging on if
+   * there is no such session yet. Every successful call has to be paired
+   * with {@link #release}.
+   */
+  public Session acquire( String address, int port, String user, String password )
+  {
+    String name = user + "@" + address + ":" + port;
+    String key = name + "#" + digest( password );
+
+    //  Concurrent activations of several projects against one server have to
+    //  end up with one session: the first one logs on, the others wait.
+    Session session;
+    boolean logOn = false;
+    synchronized( this )
+    {
+      session = mySessions.get( key );
+      if( session == null || session.isLost() )
+      {
+        if( session != null )
+          LOG.info( "session lost, logging on again: " + name );
+
+        session = new Session( key, name );
+        mySessions.put( key, session );
+        logOn = true;
+      }
+      session.references++;
+    }
+
+    logOn( session, logOn, address, port, user, password );
+    return session;
+  }
+
+  /**
+   * Logs on a session of its own, not shared with any other project.
+   */
+  public Session acquirePrivate( String address, int port, String user, String password )
+  {
+    String name = user + "@" + address + ":" + port;
+    Session session = new Session( null, name );
+    session.references++;
+    logOn( session, true, address, port, user, password );
+    return session;
+  }
+
+  private void logOn( Session session, boolean logOn, String address, int port, String user, String password )
+  {
+    try
+    {
+      if( logOn )
+        session.logOn( address, port, user, password );
+      else
+        session.awaitLogOn();
+    }
+    catch( RuntimeException e )
+    {
+      release( session );
+      throw e;
+    }
+  }
+
+  public void release( Session session )
+  {
+    synchronized( this )
+    {
+      if( --session.references > 0 )
+        return;
+      if( session.key != null && mySessions.get( session.key ) == session )
+        mySessions.remove( session.key );
+    }
+    session.disconnect();
+  }
+
+  private static String digest( String password )
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( password.getBytes( "UTF-8" ) );
+      StringBuilder buf = new StringBuilder();
+      for( byte b : digest )
+        buf.append( Integer.toHexString( (b & 0xFF) | 0x100 ).substring( 1 ) );
+      return buf.toString();
+    }
+    catch( Exception e )
+    {
+      //  Both are there in every JRE.
+      throw new IllegalStateException( e );
+    }
+  }
+
+  /**
+   * One logged on server with the caches shared by the projects using it.
+   * The fields describing the server are set by the logon and are read only
+   * after it (see {@link #awaitLogOn}).
+   */
+  public static class Session
+  {
+    @Nullable private final String key;
+    private final String name;
+    private Server server;
+    private int userID;
+    private StarteamMetadataCache.ServerMetadata metadata;
+    private StarteamItemCache itemCache;
+    private final StarteamContentCache contentCache = new StarteamContentCache();
+    private int references;
+
+    private volatile boolean loggingOn = true;
+    private volatile RuntimeException failure;
+
+    //  View ID -> the working path it is opened with and by how many projects.
+    private final Map<Integer, ViewClaim> views = new HashMap<Integer, ViewClaim>();
+
+    private Session( @Nullable String key, String name )
+    {
+      this.key = key;
+      this.name = name;
+    }
+
+    private synchronized void logOn( String address, int port, String user, String password )
+    {
+      try
+      {
+        Server server = new Server( address, port );
+        server.logOn( user, password );
+        this.server = server;
+        userID = server.getMyUserID();
+        metadata = StarteamMetadataCache.getInstance().get( address, port, user );
+        metadata.load( server );
+        itemCache = new StarteamItemCache( metadata.getTypeNames().FILE );
+      }
+      catch( RuntimeException e )
+      {
+        failure = e;
+        throw e;
+      }
+      finally
+      {
+        loggingOn = false;
+        notifyAll();
+      }
+    }
+
+    private synchronized void awaitLogOn()
+    {
+      while( loggingOn )
+      {
+        try
+        {
+          wait();
+        }
+        catch( InterruptedException e )
+        {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException( "interrupted while logging on: " + name );
+        }
+      }
+      if( failure != null )
+        throw failure;
+    }
+
+    /**
+     * Not synchronized, the registry asks under its own lock while the logon
+     * may hold the session's one.
+     */
+    private boolean isLost()
+    {
+      return failure != null || (!loggingOn && !server.isConnected());
+    }
+
+    public Server getServer()                                 {  return server;  }
+    public int getUserID()                                    {  return userID;  }
+    public StarteamMetadataCache.ServerMetadata getMetadata() {  return metadata;  }
+    public StarteamItemCache getItemCache()                   {  return itemCache;  }
+    public StarteamContentCache getContentCache()             {  return contentCache;  }
+
+    /**
+     * The items of a view are shared by all projects of the session, and the
+     * working path is set on the view (and its root folder) itself.
+     *
+     * @return <code>false</code> if the view is open in the session with
+     *         another working path already; {@link #releaseView} otherwise.
+     */
+    public synchronized boolean claimView( int viewID, String workingPath )
+    {
+      ViewClaim claim = views.get( viewID );
+      if( claim == null )
+        views.put( viewID, claim = new ViewClaim( workingPath ) );
+      else
+      if( !claim.workingPath.equals( workingPath ) )
+        return false;
+
+      claim.count++;
+      return true;
+    }
+
+    public synchronized void releaseView( int viewID )
+    {
+      ViewClaim claim = views.get( viewID );
+      if( claim != null && --claim.count == 0 )
+        views.remove( viewID );
+    }
+
+    private void disconnect()
+    {
+      LOG.debug( "disconnecting: " + name );
+      if( server == null )
+        return;
+
+      try
+      {
+        server.disconnect();
+      }
+      catch( RuntimeException e )
+      {
+        LOG.debug( e );
+      }
+    }
+  }
+
+  private static class ViewClaim
+  {
+    private final String workingPath;
+    private int count;
+
+    private ViewClaim( String workingPath )
+    {
+      this.workingPath = workingPath;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package com.intellij.vcs.starteam;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Last known StarTeam status of the working copy files, stored column-wise in
+ * primitive arrays indexed by the {@link PathTable} ID of the file: status,
+ * revision, lock owner, MD5 of the repository revision, and the modification
+ * time and size of the local file at the moment the status was taken.
+ * <p/>
+ * Readers get the answers without touching SDK items at all. An entry is
+ * reused by the change provider only while the local file keeps the recorded
+ * time and size; operations which change the file on the server side
+ * (checkin, checkout, lock, update) invalidate the entries they touch.
+ */
+public class StarteamStatusTable
+{
+  public static final int UNKNOWN = -2;
+  public static final int NOT_LOCKED = -1;
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int MD5_LENGTH = 16;
+  private static final long STALE = -1;
+
+  private byte[] myStatus = new byte[ INITIAL_CAPACITY ];
+  private int[]  myRevision = new int[ INITIAL_CAPACITY ];
+  private int[]  myLockOwner = new int[ INITIAL_CAPACITY ];
+  private int[]  myMD5Slot = new int[ INITIAL_CAPACITY ];
+  private long[] myMtime = new long[ INITIAL_CAPACITY ];
+  private long[] mySize = new long[ INITIAL_CAPACITY ];
+
+  //  MD5 digests are packed into one array, 16 bytes per slot; slot 0 is
+  //  reserved for "no digest".
+  private byte[] myMD5s = new byte[ INITIAL_CAPACITY * MD5_LENGTH ];
+  private int myMD5Count = 1;
+
+  public StarteamStatusTable()
+  {
+    Arrays.fill( myStatus, (byte)UNKNOWN );
+  }
+
+  public synchronized void record( int id, int status, int revision, int lockOwner, @Nullable byte[] md5,
+                                   long mtime, long size )
+  {
+    ensureCapacity( id );
+    myStatus[ id ] = (byte)status;
+    myRevision[ id ] = revision;
+    myLockOwner[ id ] = lockOwner;
+    myMtime[ id ] = mtime;
+    mySize[ id ] = size;
+
+    if( md5 != null && md5.length == MD5_LENGTH )
+    {
+      if( myMD5Slot[ id ] == 0 )
+        myMD5Slot[ id ] = allocateMD5Slot();
+      System.arraycopy( md5, 0, myMD5s, myMD5Slot[ id ] * MD5_LENGTH, MD5_LENGTH );
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the status of the file is known and the
+   *         local file still has the recorded modification time and size.
+   */
+  public synchronized boolean isUpToDate( int id, long mtime, long size )
+  {
+    return id < myStatus.length && myStatus[ id ] != UNKNOWN && myMtime[ id ] != STALE &&
+           myMtime[ id ] == mtime && mySize[ id ] == size;
+  }
+
+  /**
+   * @return one of {@link com.starbase.starteam.Status} constants, or
+   *         {@link #UNKNOWN} if the file was not seen yet.
+   */
+  public synchronized int getStatus( int id )
+  {
+    return (id < myStatus.length) ? myStatus[ id ] : UNKNOWN;
+  }
+
+  public synchronized int getRevision( int id )
+  {
+    return (id < myStatus.length && myStatus[ id ] != UNKNOWN) ? myRevision[ id ] : UNKNOWN;
+  }
+
+  /**
+   * @return ID of the user holding the lock, {@link #NOT_LOCKED} or
+   *         {@link #UNKNOWN} if the file was not seen yet or its entry was
+   *         invalidated since (e.g. by locking or unlocking it).
+   */
+  public synchronized int getLockOwner( int id )
+  {
+    return (id < myStatus.length && myStatus[ id ] != UNKNOWN && myMtime[ id ] != STALE) ? myLockOwner[ id ] : UNKNOWN;
+  }
+
+  @Nullable
+  public synchronized byte[] getMD5( int id )
+  {
+    if( id >= myStatus.length || myMD5Slot[ id ] == 0 )
+      return null;
+
+    byte[] md5 = new byte[ MD5_LENGTH ];
+    System.arraycopy( myMD5s, myMD5Slot[ id ] * MD5_LENGTH, md5, 0, MD5_LENGTH );
+    return md5;
+  }
+
+  /**
+   * Keeps the last known values but forces the next status pass to ask the
+   * server again.
+   */
+  public synchronized void invalidate( int id )
+  {
+    if( id != PathTable.NONE && id < myMtime.length )
+      myMtime[ id ] = STALE;
+  }
+
+  public synchronized void invalidateAll()
+  {
+    Arrays.fill( myMtime, STALE );
+  }
+
+  private void ensureCapacity( int id )
+  {
+    if( id < myStatus.length )
+      return;
+
+    int capacity = Math.max( id + 1, myStatus.length * 2 );
+    int oldCapacity = myStatus.length;
+    myStatus = Arrays.copyOf( myStatus, capacity );
+    Arrays.fill( myStatus, oldCapacity, capacity, (byte)UNKNOWN );
+    myRevision = Arrays.copyOf( myRevision, capacity );
+    myLockOwner = Arrays.copyOf( myLockOwner, capacity );
+    myMD5Slot = Arrays.copyOf( myMD5Slot, capacity );
+    myMtime = Arrays.copyOf( myMtime, capacity );
+    mySize = Arrays.copyOf( mySize, capacity );
+  }
+
+  private int allocateMD5Slot()
+  {
+    if( (myMD5Count + 1) * MD5_LENGTH > myMD5s.length )
+      myMD5s = Arrays.copyOf( myMD5s, myMD5s.length * 2 );
+    return myMD5Count++;
+  }
+}
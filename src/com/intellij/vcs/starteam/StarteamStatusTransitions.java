@@ -0,0 +1,82 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.vcsUtil.VcsUtil;
+import com.starbase.starteam.Status;
+import gnu.trove.TLongIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Outcome of a recursive status refresh: how many files and folders were
+ * looked at, and how many files went from one status to another compared to
+ * what the status table knew before. Files the table did not know yet are
+ * counted as transitions from "unknown".
+ */
+public class StarteamStatusTransitions
+{
+  private int myFolders;
+  private int myFiles;
+  private final TLongIntHashMap myCounts = new TLongIntHashMap();
+  private final List<FilePath> myChanged = new ArrayList<FilePath>();
+
+  public synchronized void folderScanned()
+  {
+    myFolders++;
+  }
+
+  public synchronized void record( String path, int before, int after )
+  {
+    myFiles++;
+    if( before == after )
+      return;
+
+    long key = ((long)before << 32) | (after & 0xffffffffL);
+    myCounts.put( key, myCounts.get( key ) + 1 );
+    myChanged.add( VcsUtil.getFilePath( path, false ) );
+  }
+
+  public synchronized int getFolderCount()  {  return myFolders;  }
+  public synchronized int getFileCount()    {  return myFiles;    }
+
+  /**
+   * @return files whose status has changed.
+   */
+  public synchronized List<FilePath> getChangedFiles()
+  {
+    return new ArrayList<FilePath>( myChanged );
+  }
+
+  /**
+   * @return one line per transition, e.g. "Current -> Out of Date: 3", the
+   *         most frequent first.
+   */
+  public synchronized String getSummary()
+  {
+    long[] keys = myCounts.keys();
+    final TLongIntHashMap counts = myCounts;
+    Long[] sorted = new Long[ keys.length ];
+    for( int i = 0; i < keys.length; i++ )
+      sorted[ i ] = keys[ i ];
+    Arrays.sort( sorted, new Comparator<Long>()
+    {
+      public int compare( Long a, Long b )  {  return counts.get( b ) - counts.get( a );  }
+    });
+
+    StringBuilder buf = new StringBuilder();
+    for( Long key : sorted )
+    {
+      buf.append( name( (int)(key >> 32) ) ).append( " -> " ).append( name( (int)(long)key ) );
+      buf.append( ": " ).append( counts.get( key ) ).append( '\n' );
+    }
+    return buf.toString();
+  }
+
+  private static String name( int status )
+  {
+    return (status == StarteamStatusTable.UNKNOWN) ? "(unknown)" : Status.name( status );
+  }
+}
@@ -1,5 +1,6 @@
 package com.intellij.vcs.starteam;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.options.Configurable;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
@@ -25,6 +26,8 @@ import java.util.List;
  */
 public class StarteamUpdateEnvironment implements UpdateEnvironment
 {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.StarteamUpdateEnvironment");
+
   private final StarteamVcs host;
   private ProgressIndicator progressIndicator;
   private UpdatedFiles groups;
@@ -64,6 +67,12 @@ public class StarteamUpdateEnvironment implements UpdateEnvironment
     catch( ServerException e ){  errors.add( new VcsException( e.getMessage() ) );  }
     catch( TypeNotFoundException e ){  errors.add( new VcsException( StarteamBundle.message("message.text.expired.license") ) );  }
 
+    //  The update walks the whole tree, report what it has left on the heap.
+    StarteamItemCache itemCache = host.getItemCache();
+    if( itemCache != null )
+      LOG.info( "Update of " + iteratedFodersCount + " folders finished, " + itemCache.getStatistics() );
+    LOG.info( "content sources: " + host.getContentSources().getStatistics() );
+
     return new UpdateSession(){
       @NotNull
       public List<VcsException> getExceptions() {  return errors;  }
@@ -96,9 +105,18 @@ public class StarteamUpdateEnvironment implements UpdateEnvironment
       folder.update();
       host.refreshFolder( folder );
 
-      File[] files = host.getFiles( folder );
-      for( File file : files )
-        processFile( file, errors );
+      //  Every file's status is going to be read, populate it at once.
+      StarteamItemCache cache = host.pinItems();
+      try
+      {
+        File[] files = host.getFiles( folder, StarteamProjection.STATUS );
+        for( File file : files )
+          processFile( file, errors );
+      }
+      finally
+      {
+        StarteamVcs.unpinItems( cache );
+      }
 
       Folder[] subFolders = host.getSubFolders( folder );
       for( Folder subFolder : subFolders )
@@ -127,6 +145,10 @@ public class StarteamUpdateEnvironment implements UpdateEnvironment
       {
         groups.getGroupById( FileGroup.MERGED_WITH_CONFLICT_ID ).add(file.getFullName(), vcsKey, null);
       }
+
+      //  Keep the status table in line with what the update has just seen
+      //  (or done), so that the next status pass need not ask again.
+      host.recordStatus( file );
     }
     catch( IOException e )
     {
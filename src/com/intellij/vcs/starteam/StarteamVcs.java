@@ -1,13 +1,21 @@
 package com.intellij.vcs.starteam;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.*;
 import com.intellij.openapi.vcs.changes.ChangeListManager;
 import com.intellij.openapi.vcs.changes.ChangeProvider;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
 import com.intellij.openapi.vcs.checkin.CheckinEnvironment;
 import com.intellij.openapi.vcs.history.VcsHistoryProvider;
 import com.intellij.openapi.vcs.rollback.RollbackEnvironment;
@@ -15,20 +23,25 @@ import com.intellij.openapi.vcs.update.UpdateEnvironment;
 import com.intellij.openapi.vfs.LocalFileOperationsHandler;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.vfs.VirtualFileListener;
 import com.intellij.util.ThrowableConsumer;
 import com.intellij.vcsUtil.VcsUtil;
 import com.starbase.starteam.*;
+import com.starbase.util.MD5;
 import com.starbase.util.OLEDate;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * todo Use StarteamFinder whereever possible
@@ -40,6 +53,7 @@ public class StarteamVcs extends AbstractVcs
   private static final VcsKey ourKey = createKey(NAME);
 
   @NonNls private static final String VIEW_NOT_FOUND = "exception.text.configuration.view.not.found";
+  @NonNls private static final String NOT_CONNECTED_YET = "exception.text.not.connected.yet";
   @NonNls private static final String PROJECT_NOT_FOUND = "exception.text.configuration.project.not.found";
   @NonNls private static final String FILE_NOT_FOUND_IN_STARTEAM = "exception.text.configuration.file.not.found";
   @NonNls private static final String FOLDER_NOT_FOUND_IN_STARTEAM = "exception.text.configuration.folder.not.found";
@@ -50,10 +64,23 @@ public class StarteamVcs extends AbstractVcs
   @NonNls public static final String RENAMED_FOLDER_PREFIX = ".IJI.";
   @NonNls public static final String VERSIONED_FOLDER_SIG = ".sbas";
 
+
   private boolean   safeInit = false;
-  private Server    myServer;
-  private Project   myStarteamProject;
-  private View      myView;
+  private volatile StarteamSessionRegistry.Session mySession;
+  private int       myClaimedViewID = StarteamMetadataCache.NO_ID;
+  private volatile Server myServer;
+  private StarteamMetadataCache.ServerMetadata myMetadata;
+  private int       myUserID = StarteamStatusTable.UNKNOWN;
+  private volatile StarteamItemCache myItemCache;
+  private volatile Project myStarteamProject;
+  private volatile View myView;
+  private volatile Future<?> myActivation;
+  private final StarteamIncomingPoller myPoller;
+  private final StarteamFolderChanges myFolderChanges = new StarteamFolderChanges();
+  private final StarteamEventSource.Factory myEventSources;
+  private StarteamEventSource myEventSource;
+  private volatile StarteamContentSources myContentSources;
+  private StarteamEventSource.Listener myEventListener;
 
   private static final char SEP = java.io.File.separatorChar;
   private StarteamCheckinEnvironment myCheckinEnvironment;
@@ -62,24 +89,37 @@ public class StarteamVcs extends AbstractVcs
   private UpdateEnvironment   myUpdateEnvironment;
   private VcsHistoryProvider  myHistoryProvider;
   private StarteamConfiguration myConfiguration;
+  //  Used until the session (and its shared cache) is there.
+  private final StarteamContentCache myLocalContentCache = new StarteamContentCache();
 
   private VcsShowConfirmationOption addConfirmation;
   private VcsShowConfirmationOption delConfirmation;
 
-  private VirtualFileListener listener;
+  private VFSListener listener;
   private LocalFileOperationsHandler localFileDeletionListener;
 
-  public  HashSet<String>         removedFiles;
-  public  HashSet<String>         removedFolders;
-  public  HashSet<String>         newFiles;
-  public  HashMap<String, String> renamedFiles;
-  public  HashMap<String, String> renamedDirs;
-  public  HashMap<VirtualFile, String> removedFoldersNameMap;
+  private final PathTable myPathTable = new PathTable( SystemInfo.isFileSystemCaseSensitive );
+  private final PendingChangeStore myPendingChanges = new PendingChangeStore( myPathTable );
+  private final StarteamViewIndex myViewIndex = new StarteamViewIndex( myPathTable );
+  private final StarteamStatusTable myStatusTable = new StarteamStatusTable();
+  private final PendingChangeReconciler myReconciler = new PendingChangeReconciler( this );
 
   public StarteamVcs( com.intellij.openapi.project.Project project,
                       StarteamConfiguration starteamConfiguration)
+  {
+    this( project, starteamConfiguration, StarteamMpxEventSource.FACTORY );
+  }
+
+  /**
+   * @param eventSources source of the server events, e.g. a
+   *                     {@link StarteamLocalEventBroker.Registry} to run offline
+   */
+  public StarteamVcs( com.intellij.openapi.project.Project project,
+                      StarteamConfiguration starteamConfiguration, StarteamEventSource.Factory eventSources )
   {
     super( project, NAME);
+    myPoller = new StarteamIncomingPoller( this, project );
+    myEventSources = eventSources;
 
     try {
       safeInit = true;
@@ -89,13 +129,6 @@ public class StarteamVcs extends AbstractVcs
       myUpdateEnvironment = new StarteamUpdateEnvironment( this );
       myHistoryProvider = new StarteamHistoryProvider( this );
       myChangeProvider = new StarteamChangeProvider( myProject, this );
-
-      removedFiles = new HashSet<String>();
-      removedFolders = new HashSet<String>();
-      renamedFiles = new HashMap<String, String>();
-      renamedDirs = new HashMap<String, String>();
-      removedFoldersNameMap = new HashMap<VirtualFile, String>();
-      newFiles = new HashSet<String>();
     }
     catch (Throwable e) {
     }
@@ -124,14 +157,26 @@ public class StarteamVcs extends AbstractVcs
     return safeInit? new StarteamConfigurable( myProject ) : new StarteamVcsAdapter.MyConfigurable();
   }
 
+  public StarteamContentCache getContentCache()
+  {
+    StarteamSessionRegistry.Session session = mySession;
+    return (session != null) ? session.getContentCache() : myLocalContentCache;
+  }
+
   public VcsShowConfirmationOption getAddConfirmation()   {  return addConfirmation; }
   public VcsShowConfirmationOption getDelConfirmation()   {  return delConfirmation; }
 
+  public PendingChangeStore getPendingChanges() {  return myPendingChanges;  }
+  public PathTable getPathTable()               {  return myPathTable;  }
+  public StarteamStatusTable getStatusTable()   {  return myStatusTable;  }
+  StarteamViewIndex getViewIndex()              {  return myViewIndex;  }
+  PendingChangeReconciler getReconciler()       {  return myReconciler;  }
+
   public void add2NewFile( VirtualFile file )   {  add2NewFile( file.getPath() );       }
-  public void add2NewFile( String path )        {  newFiles.add( path.toLowerCase() );  }
+  public void add2NewFile( String path )        {  myPendingChanges.addNewFile( path );  }
   public void deleteNewFile( VirtualFile file ) {  deleteNewFile( file.getPath() );     }
-  public void deleteNewFile( String path )      {  newFiles.remove( path.toLowerCase() );  }
-  public boolean containsNew( String path )     {  return newFiles.contains( path.toLowerCase() );   }
+  public void deleteNewFile( String path )      {  myPendingChanges.removeNewFile( path );  }
+  public boolean containsNew( String path )     {  return myPendingChanges.isNewFile( path );   }
 
   public void projectOpened()
   {
@@ -145,25 +190,119 @@ public class StarteamVcs extends AbstractVcs
 
   public void disposeComponent() { myCheckinEnvironment = null; }
 
+  /**
+   * Logon and the view lookup may take seconds over a slow link, so they go
+   * to a pooled thread and the project opens meanwhile. The listeners only
+   * record local changes and are registered at once; server calls made
+   * before the connection is up wait for it in {@link #waitForActivation}.
+   */
   public void activate()
   {
-    try {
-      startMe();
-    }
-    catch (VcsException e) {
-      LOG.info(e);
-    }
+    openJournal();
     registerListeners();
     initConfirmationOptions();
+
+    myActivation = ApplicationManager.getApplication().executeOnPooledThread( new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          startMe();
+
+          //  Server events make the polling unnecessary.
+          if( !subscribeToEvents() )
+            myPoller.start();
+        }
+        catch( VcsException e )
+        {
+          LOG.info( e );
+        }
+
+        //  Statuses reported before the connection was up are unknown.
+        if( !myProject.isDisposed() )
+          VcsDirtyScopeManager.getInstance( myProject ).markEverythingDirty();
+      }
+    });
+  }
+
+  public boolean isActivated()
+  {
+    Future<?> activation = myActivation;
+    return activation == null || activation.isDone();
+  }
+
+  /**
+   * Blocks until the background activation is over, successful or not. On
+   * the event dispatch thread the wait is shown as a modal progress. Callers
+   * holding the write lock (or the read lock off the event thread) are not
+   * blocked: no progress can be shown there, and the activation may need
+   * the lock itself; they get <code>false</code> and are to behave as if
+   * the session was not connected.
+   *
+   * @return whether the activation is over.
+   */
+  public boolean waitForActivation()
+  {
+    final Future<?> activation = myActivation;
+    if( activation == null || activation.isDone() )
+      return true;
+
+    Application application = ApplicationManager.getApplication();
+    if( application.isDispatchThread() )
+    {
+      if( application.isWriteAccessAllowed() )
+        return false;
+      ProgressManager.getInstance().runProcessWithProgressSynchronously( new Runnable()
+        {  public void run() {  await( activation );  }  },
+        StarteamBundle.message( "progress.title.connecting" ), false, myProject );
+    }
+    else
+    {
+      if( application.isReadAccessAllowed() )
+        return false;
+      await( activation );
+    }
+    return activation.isDone();
+  }
+
+  private static void await( Future<?> activation )
+  {
+    try
+    {
+      activation.get();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch( ExecutionException e )
+    {
+      LOG.info( e.getCause() );
+    }
   }
 
   public void deactivate()
   {
-    LocalFileSystem.getInstance().removeVirtualFileListener( listener );
+    if( listener != null )
+    {
+      LocalFileSystem.getInstance().removeVirtualFileListener( listener );
+      listener.dispose();
+    }
     if (localFileDeletionListener != null) {
       // if null -> was not activated
       LocalFileSystem.getInstance().unregisterAuxiliaryFileOperationsHandler( localFileDeletionListener );
     }
+    myPoller.stop();
+    unsubscribeFromEvents();
+    myPendingChanges.detachJournal();
+
+    //  Do not let the activation connect after the shutdown. Here the wait
+    //  is a must, whatever the thread.
+    Future<?> activation = myActivation;
+    if( activation != null )
+      await( activation );
+    myActivation = null;
     try {
       shutdownMe();
     }
@@ -178,11 +317,23 @@ public class StarteamVcs extends AbstractVcs
     {
       LOG.debug("enter: start()");
 
-      connect();
+      myViewIndex.clear();
+      connect( false );
       findProject();
       
       if (myStarteamProject == null) return;
       findView();
+      if( myView != null && !claimView() )
+      {
+        //  Another project has the view open in the shared session with
+        //  another working path; the view items cannot be shared with it.
+        LOG.info( "view " + myConfiguration.VIEW + " is open with another working path, using a session of its own" );
+        connect( true );
+        findProject();
+        if (myStarteamProject == null) return;
+        findView();
+        claimView();
+      }
       if( myView != null && myConfiguration.ALTERNATIVE_WORKING_PATH.length() != 0)
       {
         myView.setAlternatePath( myConfiguration.ALTERNATIVE_WORKING_PATH );
@@ -192,6 +343,7 @@ public class StarteamVcs extends AbstractVcs
         root.setAlternatePathFragment( myConfiguration.ALTERNATIVE_WORKING_PATH );
         root.update();
       }
+      myContentSources = new StarteamContentSources( myView, myConfiguration.USE_CACHE_AGENT ? myConfiguration.CACHE_AGENT : "" );
 
       LOG.debug("exit: start()");
     }
@@ -203,9 +355,61 @@ public class StarteamVcs extends AbstractVcs
 
   public void shutdownMe() throws VcsException
   {
+    if( myContentSources != null )
+      LOG.info( "content sources: " + myContentSources.getStatistics() );
+    myContentSources = null;
+    myViewIndex.clear();
     disconnect();
   }
 
+  /**
+   * Subscribes to the server events of the view, if configured to.
+   * @return whether the events are being received.
+   */
+  private boolean subscribeToEvents()
+  {
+    if( !myConfiguration.LISTEN_SERVER_EVENTS || myView == null )
+      return false;
+
+    myEventSource = myEventSources.create( myServer, myView );
+
+    myEventListener = new StarteamEventSubscriber( this, myProject );
+    if( myEventSource.subscribe( myEventListener ) )
+      return true;
+
+    myEventSource = null;
+    myEventListener = null;
+    return false;
+  }
+
+  private void unsubscribeFromEvents()
+  {
+    if( myEventSource != null )
+      myEventSource.unsubscribe( myEventListener );
+    myEventSource = null;
+    myEventListener = null;
+  }
+
+  /**
+   * Restores the pending changes recorded by the previous sessions (in place
+   * of anything read from the workspace file, the journal is never older)
+   * and starts journaling new ones.
+   */
+  private void openJournal()
+  {
+    java.io.File file = new java.io.File( PathManager.getSystemPath(), "starteam" + SEP + myProject.getLocationHash() + ".journal" );
+    PendingChangeJournal journal = new PendingChangeJournal( file, myPendingChanges );
+    journal.replay();
+    try
+    {
+      myPendingChanges.attachJournal( journal );
+    }
+    catch( IOException e )
+    {
+      LOG.warn( "pending changes are not journaled: " + file, e );
+    }
+  }
+
   /**
    * Initialization for confirmation options may be called out from two places -
    * when project is opened and when ST is assigned for a project. Avoid duplication.
@@ -234,34 +438,71 @@ public class StarteamVcs extends AbstractVcs
     LocalFileSystem.getInstance().registerAuxiliaryFileOperationsHandler( localFileDeletionListener );
   }
   
-  private void connect()
+  private void connect( boolean privateSession )
   {
-    if (LOG.isDebugEnabled()){
-      LOG.debug("creating server instance: " + myConfiguration.SERVER + ":" + myConfiguration.PORT);
-    }
-    myServer = new Server(myConfiguration.SERVER, myConfiguration.PORT);
+    if (mySession != null) disconnect();
 
     if (LOG.isDebugEnabled()){
-      LOG.debug("logging in: " + myConfiguration.USER + "@" + "**********");
+      LOG.debug("acquiring session: " + myConfiguration.USER + "@" + myConfiguration.SERVER + ":" + myConfiguration.PORT);
     }
-    myServer.logOn(myConfiguration.USER, myConfiguration.getPassword() );
+    StarteamSessionRegistry registry = StarteamSessionRegistry.getInstance();
+    mySession = privateSession
+                ? registry.acquirePrivate(myConfiguration.SERVER, myConfiguration.PORT, myConfiguration.USER, myConfiguration.getPassword())
+                : registry.acquire(myConfiguration.SERVER, myConfiguration.PORT, myConfiguration.USER, myConfiguration.getPassword());
+    myServer = mySession.getServer();
+    myUserID = mySession.getUserID();
+    myMetadata = mySession.getMetadata();
+    myItemCache = mySession.getItemCache();
+  }
+
+  private boolean claimView() {
+    if (!mySession.claimView(myView.getID(), myConfiguration.ALTERNATIVE_WORKING_PATH)) return false;
+    myClaimedViewID = myView.getID();
+    return true;
   }
 
   private void disconnect() {
     myView = null;
 
     LOG.debug("disconnecting");
-    if (myServer != null){
-      myServer.disconnect();
+    if (mySession != null){
+      if (myClaimedViewID != StarteamMetadataCache.NO_ID) mySession.releaseView(myClaimedViewID);
+      myClaimedViewID = StarteamMetadataCache.NO_ID;
+      //  The server stays logged on while other projects use it.
+      StarteamSessionRegistry.getInstance().release(mySession);
     }
+    mySession = null;
     myServer = null;
+    myUserID = StarteamStatusTable.UNKNOWN;
+    myItemCache = null;
+    myFolderChanges.clear();
   }
 
   private void findView() throws VcsException {
+    //  Open the view by its known ID, skipping the listing of all views.
+    int id = myConfiguration.VIEW_ID;
+    if (id == StarteamMetadataCache.NO_ID) id = myMetadata.getViewID(myConfiguration.PROJECT, myConfiguration.VIEW);
+    if (id != StarteamMetadataCache.NO_ID) {
+      try {
+        final View view = myStarteamProject.findView(id);
+        if (view != null && view.getName().equals(myConfiguration.VIEW)) {
+          myView = view;
+          myConfiguration.VIEW_ID = id;
+          return;
+        }
+      }
+      catch (RuntimeException e) {
+        LOG.debug(e);
+      }
+      LOG.debug("stale view ID: " + id);
+    }
+
     final View[] views = myStarteamProject.getViews();
+    myMetadata.recordViews(myStarteamProject, views);
     for (View view : views) {
       if (view.getName().equals(myConfiguration.VIEW)) {
         myView = view;
+        myConfiguration.VIEW_ID = view.getID();
         if (LOG.isDebugEnabled()) {
           LOG.debug("found view: " + myConfiguration.VIEW);
         }
@@ -269,14 +510,35 @@ public class StarteamVcs extends AbstractVcs
       }
     }
 
+    myConfiguration.VIEW_ID = StarteamMetadataCache.NO_ID;
     error(VIEW_NOT_FOUND, myConfiguration.VIEW);
   }
 
   private void findProject() throws VcsException {
+    //  Open the project by its known ID, skipping the listing of all projects.
+    int id = myConfiguration.PROJECT_ID;
+    if (id == StarteamMetadataCache.NO_ID) id = myMetadata.getProjectID(myConfiguration.PROJECT);
+    if (id != StarteamMetadataCache.NO_ID) {
+      try {
+        final Project project = myServer.findProject(id);
+        if (project != null && project.getName().equals(myConfiguration.PROJECT)) {
+          myStarteamProject = project;
+          myConfiguration.PROJECT_ID = id;
+          return;
+        }
+      }
+      catch (RuntimeException e) {
+        LOG.debug(e);
+      }
+      LOG.debug("stale project ID: " + id);
+    }
+
     final Project[] projects = myServer.getProjects();
+    myMetadata.recordProjects(projects);
     for (Project project : projects) {
       if (project.getName().equals(myConfiguration.PROJECT)) {
         myStarteamProject = project;
+        myConfiguration.PROJECT_ID = project.getID();
         if (LOG.isDebugEnabled()) {
           LOG.debug("found project: " + myConfiguration.PROJECT);
         }
@@ -284,6 +546,7 @@ public class StarteamVcs extends AbstractVcs
       }
     }
 
+    myConfiguration.PROJECT_ID = StarteamMetadataCache.NO_ID;
     error(PROJECT_NOT_FOUND, myConfiguration.PROJECT);
   }
 
@@ -292,7 +555,7 @@ public class StarteamVcs extends AbstractVcs
     if (LOG.isDebugEnabled())  LOG.debug("enter: checkinFile(file='" + path + "')");
 
     refresh();
-    File f = findFile( path );
+    File f = findFile( path, StarteamProjection.CONTENT );
     if (f == null) error( FILE_NOT_FOUND_IN_STARTEAM, path );
 
     try
@@ -338,6 +601,7 @@ public class StarteamVcs extends AbstractVcs
           unlockFile( f );
         }
       }
+      invalidateStatus( path );
     }
     catch(Exception e){
       LOG.debug(e);
@@ -364,7 +628,7 @@ public class StarteamVcs extends AbstractVcs
       LOG.debug("enter: checkoutFile(file='" + path + "')");
 
     refresh();
-    File f = findFile( path );
+    File f = findFile( path, StarteamProjection.CONTENT );
     if( f == null ) error( FILE_NOT_FOUND_IN_STARTEAM, path );
 
     return checkoutFile( f, verbose );
@@ -399,10 +663,10 @@ public class StarteamVcs extends AbstractVcs
 
       if (!"".equals(myConfiguration.ALTERNATIVE_WORKING_PATH)){
         java.io.File checkoutTo = new java.io.File(file.getFullName());
-        file.checkoutTo(checkoutTo, Item.LockType.UNCHANGED, true, false, true);
+        getContentSources().checkout(file, checkoutTo);
       }
       else{
-        file.checkout(Item.LockType.UNCHANGED, true, false, true);
+        getContentSources().checkout(file, null);
       }
 
       if( myConfiguration.LOCK_ON_CHECKOUT )
@@ -410,6 +674,7 @@ public class StarteamVcs extends AbstractVcs
         lockFile( file );
       }
 
+      invalidateStatus( file.getFullName() );
       return true;
     }
     catch(Exception e){
@@ -420,7 +685,7 @@ public class StarteamVcs extends AbstractVcs
 
   public void checkoutFolder( Folder folder ) throws VcsException
   {
-    File[] files = getFiles( folder );
+    File[] files = getFiles( folder, StarteamProjection.CONTENT );
     for( File file : files )
       checkoutFile( file, false );
 
@@ -435,20 +700,69 @@ public class StarteamVcs extends AbstractVcs
     }
 
     refresh();
-    File f = findFile(path);
+    File f = findFile(path, StarteamProjection.CONTENT);
     if (f == null) error(FILE_NOT_FOUND_IN_STARTEAM, path);
 
+    final int revision = f.getRevisionNumber();
+    byte[] content = getContentCache().get(path, revision);
+    if (content != null) return content;
+
     ByteArrayOutputStream inputStream = new ByteArrayOutputStream();
 
     try{
-      f.checkoutToStream(inputStream, Item.LockType.UNCHANGED, false);
+      getContentSources().checkoutToStream(f, inputStream);
     }
     catch(Exception e){
       LOG.debug(e);
       throw new VcsException(e);
     }
 
-    return inputStream.toByteArray();
+    content = inputStream.toByteArray();
+    getContentCache().put(path, revision, content);
+    return content;
+  }
+
+  /**
+   * Brings the working copy of the file back to its repository revision.
+   * If the base content of this very revision is cached locally, the file is
+   * simply overwritten with it and StarTeam's status of the working file is
+   * brought in line; otherwise, or if StarTeam does not see the result as
+   * current, it is checked out from the server.
+   */
+  public void restoreFile( File file, String path ) throws VcsException
+  {
+    byte[] content = getContentCache().get( path, file.getRevisionNumber() );
+    java.io.File ioFile = new java.io.File( path );
+
+    //  Read-only working copies are left to the checkout so that StarTeam
+    //  keeps control over the file attributes.
+    if( content != null && (!ioFile.exists() || ioFile.canWrite()) )
+    {
+      try
+      {
+        FileUtil.writeToFile( ioFile, content );
+
+        //  A checkout records the MD5 and the time stamp of the working file
+        //  in the local status cache, the plain write has to do it explicitly.
+        file.updateStatus( false, true );
+        if( file.getStatus() == Status.CURRENT )
+        {
+          if( myConfiguration.LOCK_ON_CHECKOUT )
+          {
+            lockFile( file );
+          }
+          recordStatus( path, file );
+          return;
+        }
+        LOG.debug( "restored content is not current, checking out: " + path );
+      }
+      catch( IOException e )
+      {
+        LOG.debug( e );
+      }
+    }
+
+    checkoutFile( file, false );
   }
 
   public void lockFile( String path ) throws VcsException
@@ -457,10 +771,11 @@ public class StarteamVcs extends AbstractVcs
       LOG.debug("enter: lockFile(file='" + path + "')");
 
     refresh();
-    File f = findFile( path);
+    File f = findFile( path, StarteamProjection.LOCK );
     if (f == null) error( FILE_NOT_FOUND_IN_STARTEAM, path );
 
     lockFile ( f );
+    invalidateStatus( path );
   }
 
   private static void lockFile( File file ) throws VcsException
@@ -475,10 +790,11 @@ public class StarteamVcs extends AbstractVcs
       LOG.debug("enter: unlockFile(file='" + path + "')");
 
     refresh();
-    File f = findFile( path );
+    File f = findFile( path, StarteamProjection.LOCK );
     if (f == null) error( FILE_NOT_FOUND_IN_STARTEAM, path );
 
     unlockFile( f );
+    invalidateStatus( path );
   }
 
   private static void unlockFile( File file ) throws VcsException
@@ -487,6 +803,165 @@ public class StarteamVcs extends AbstractVcs
     catch( Exception e ){ LOG.debug(e); throw new VcsException(e);  }
   }
 
+  /**
+   * Locks or unlocks the files in one go. The files are grouped by folder
+   * and the items of every folder are resolved once; the lock calls are
+   * then issued one at a time, the SDK session is not known to be safe for
+   * concurrent use.
+   * <p/>
+   * Cancellation stops the calls but not the method: the files handled so
+   * far are returned, so that the caller can refresh them before it checks
+   * the indicator.
+   *
+   * @return the outcome for every path handled: <code>null</code> if the
+   *         file has been locked (unlocked), the failure otherwise.
+   */
+  public Map<String, VcsException> lockFiles( Collection<String> paths, boolean lock,
+                                              @Nullable ProgressIndicator indicator ) throws VcsException
+  {
+    if( LOG.isDebugEnabled() )
+      LOG.debug("enter: lockFiles(" + paths.size() + " files, lock=" + lock + ")");
+
+    refresh();
+    Map<String, VcsException> results = new LinkedHashMap<String, VcsException>();
+    StarteamItemCache cache = pinItems();
+    try
+    {
+      lockFiles( paths, lock, indicator, results );
+    }
+    finally
+    {
+      unpinItems( cache );
+    }
+    return results;
+  }
+
+  private void lockFiles( Collection<String> paths, boolean lock, @Nullable ProgressIndicator indicator,
+                          Map<String, VcsException> results )
+  {
+    //  Resolve the items, a folder at a time.
+    Map<String, List<String>> byFolder = new LinkedHashMap<String, List<String>>();
+    for( String path : paths )
+    {
+      String folderPath = new java.io.File( path.replace( '/', SEP ) ).getParent();
+      List<String> inFolder = byFolder.get( folderPath );
+      if( inFolder == null )
+        byFolder.put( folderPath, inFolder = new ArrayList<String>() );
+      inFolder.add( path );
+    }
+
+    List<Pair<String, File>> items = new ArrayList<Pair<String, File>>( paths.size() );
+    for( Map.Entry<String, List<String>> entry : byFolder.entrySet() )
+    {
+      if( indicator != null && indicator.isCanceled() )
+        return;
+      resolveFiles( entry.getKey(), entry.getValue(), items, results );
+    }
+
+    //  No bulk lock in the SDK: one call per item.
+    for( Pair<String, File> item : items )
+    {
+      if( indicator != null )
+      {
+        if( indicator.isCanceled() )
+          return;
+        //  The fraction belongs to the caller, only the item is shown.
+        indicator.setText2( item.first );
+      }
+
+      try
+      {
+        if( lock )  lockFile( item.second );
+        else        unlockFile( item.second );
+        results.put( item.first, null );
+      }
+      catch( VcsException e )
+      {
+        results.put( item.first, e );
+      }
+      invalidateStatus( item.first );
+    }
+  }
+
+  private void resolveFiles( @Nullable String folderPath, List<String> paths, List<Pair<String, File>> items,
+                             Map<String, VcsException> results )
+  {
+    View view = myView;
+    if( view == null )
+    {
+      for( String path : paths )
+        results.put( path, new VcsException( StarteamBundle.message( NOT_CONNECTED_YET ) ) );
+      return;
+    }
+
+    final Folder folder = (folderPath != null) ? findFolder( folderPath ) : view.getRootFolder();
+    if( folder == null )
+    {
+      for( String path : paths )
+        results.put( path, new VcsException( StarteamBundle.message( FOLDER_NOT_FOUND_IN_STARTEAM, folderPath ) ) );
+      return;
+    }
+
+    boolean sensitive = SystemInfo.isFileSystemCaseSensitive;
+    Map<String, File> byName = new HashMap<String, File>();
+    for( File f : getFiles( folder, StarteamProjection.LOCK ) )
+      byName.put( sensitive ? f.getName() : f.getName().toLowerCase(), f );
+
+    for( String path : paths )
+    {
+      String name = new java.io.File( path.replace( '/', SEP ) ).getName();
+      File f = byName.get( sensitive ? name : name.toLowerCase() );
+      if( f == null )
+        results.put( path, new VcsException( StarteamBundle.message( FILE_NOT_FOUND_IN_STARTEAM, path ) ) );
+      else
+        items.add( Pair.create( path, f ) );
+    }
+  }
+
+  /**
+   * Remembers the status of the file as reported by the SDK together with
+   * the current state of its working copy.
+   */
+  public void recordStatus( File file )
+  {
+    recordStatus( file.getFullName(), file );
+  }
+
+  public void recordStatus( String path, File file )
+  {
+    java.io.File ioFile = new java.io.File( path );
+    MD5 md5 = file.getMD5();
+    myStatusTable.record( myPathTable.intern( path ), file.getStatus(), file.getRevisionNumber(), file.getLocker(),
+                          (md5 != null) ? md5.getData() : null, ioFile.lastModified(), ioFile.length() );
+  }
+
+  public void invalidateStatus( String path )
+  {
+    myStatusTable.invalidate( myPathTable.find( path ) );
+  }
+
+  /**
+   * Locks taken or released on the server side (by other users or other
+   * clients) are not seen until the next status pass over the file or a
+   * Refresh; the answer is good for enabling actions only, the lock calls
+   * themselves always go to the server.
+   *
+   * @return ID of the user holding the lock on the file as of the last known
+   *         status, {@link StarteamStatusTable#NOT_LOCKED} or
+   *         {@link StarteamStatusTable#UNKNOWN}.
+   */
+  public int getLockOwner( VirtualFile file )
+  {
+    int id = myPathTable.find( file.getPath() );
+    return (id != PathTable.NONE) ? myStatusTable.getLockOwner( id ) : StarteamStatusTable.UNKNOWN;
+  }
+
+  public boolean isLockedByMe( VirtualFile file )
+  {
+    int owner = getLockOwner( file );
+    return owner >= 0 && owner == myUserID;
+  }
+
   public boolean existsFile( String path )
   {
     return findFile( path.replace('/', java.io.File.separatorChar) ) != null;
@@ -500,14 +975,25 @@ public class StarteamVcs extends AbstractVcs
   @Nullable
   public File findFile( String path )
   {
-    if (myView == null) return null;
+    return findFile( path, StarteamProjection.LOOKUP );
+  }
+
+  /**
+   * @param projection file properties the caller is going to read from the
+   *                   items of the file's folder
+   */
+  @Nullable
+  public File findFile( String path, StarteamProjection projection )
+  {
+    if (!waitForActivation() || myView == null) return null;
 
     boolean sensitive = SystemInfo.isFileSystemCaseSensitive;
     path = path.replace( '/', SEP );
 
     Folder folder;
+    String folderPath = null;
     if (path.indexOf(SEP) >= 0){
-      String folderPath = path.substring(0, path.lastIndexOf(SEP));
+      folderPath = path.substring(0, path.lastIndexOf(SEP));
       folder = findFolder(folderPath);
       if (folder == null) return null;
     }
@@ -517,7 +1003,8 @@ public class StarteamVcs extends AbstractVcs
 
     String fileName = path.substring(path.lastIndexOf(SEP) + 1);
 
-    final File[] files = getFiles(folder);
+    final File[] files = getFiles(folder, projection);
+    if (folderPath != null) myViewIndex.recordFiles(folderPath, files);
     for (File f : files) {
       if (sensitive && f.getName().equals(fileName)) return f;
       if (!sensitive && f.getName().equalsIgnoreCase(fileName)) return f;
@@ -530,7 +1017,7 @@ public class StarteamVcs extends AbstractVcs
   public Folder findFolder( String path )
   {
     Folder folder = null;
-    if (myView == null) return null;
+    if (!waitForActivation() || myView == null) return null;
 
     //  Convert a path to a Starbase uniform representation.
     path = path.replace('/', java.io.File.separatorChar);
@@ -547,6 +1034,7 @@ public class StarteamVcs extends AbstractVcs
     while( folder != null && !currentPath.equals( path ) )
     {
       final Folder[] folders = getSubFolders( folder );
+      myViewIndex.recordFolders( currentPath, folders );
       folder = null;
 
       for (Folder f : folders)
@@ -567,6 +1055,26 @@ public class StarteamVcs extends AbstractVcs
     return folder;
   }
 
+  /**
+   * Checks whether the path lies within the working path of the view's root
+   * folder (the root itself included).
+   */
+  boolean isUnderRootFolder( String path )
+  {
+    String rootPath = getRootFolderPath();
+    return (rootPath != null) && normalizePath( path.replace('/', SEP) ).startsWith( normalizePath( rootPath ) );
+  }
+
+  /**
+   * Binds the folder found by a direct lookup to its working path the same
+   * way <code>findFolder</code> does for the alternative working path.
+   */
+  void bindWorkingPath( Folder folder, String path )
+  {
+    if( haveAlternativePath() )
+      folder.setAlternatePathFragment( normalizePath( path.replace('/', SEP) ) );
+  }
+
   private static String normalizePath( String path )
   {
     if( !SystemInfo.isFileSystemCaseSensitive ) path = path.toLowerCase();
@@ -576,9 +1084,75 @@ public class StarteamVcs extends AbstractVcs
 
   public void updateStatus( VirtualFile file ) throws IOException
   {
-    File f = findFile( file.getPath().replace('/', java.io.File.separatorChar) );
+    File f = findFile( file.getPath().replace('/', java.io.File.separatorChar), StarteamProjection.STATUS );
     if( f != null )
+    {
       updateStatus( f );
+      recordStatus( file.getPath(), f );
+    }
+  }
+
+  /**
+   * Reads anew the status of every file under the folder, one folder at a
+   * time: the file items of a folder are populated in one round trip and
+   * the statuses are recorded in the status table and the transitions.
+   * The caller refreshes the view once for all the folders it updates.
+   */
+  public void updateStatusRecursively( VirtualFile dir, StarteamStatusTransitions transitions,
+                                       @Nullable ProgressIndicator indicator ) throws VcsException
+  {
+    final Folder folder = findFolder( dir.getPath() );
+    if( folder == null ) error( FOLDER_NOT_FOUND_IN_STARTEAM, dir.getPath() );
+
+    try
+    {
+      updateStatusRecursively( folder, transitions, indicator );
+    }
+    catch( ProcessCanceledException e )
+    {
+      throw e;
+    }
+    catch( Exception e )
+    {
+      LOG.debug( e );
+      throw new VcsException( e );
+    }
+  }
+
+  private void updateStatusRecursively( Folder folder, StarteamStatusTransitions transitions,
+                                        @Nullable ProgressIndicator indicator )
+  {
+    if( indicator != null )
+    {
+      indicator.checkCanceled();
+      indicator.setText2( folder.getPath() );
+    }
+    transitions.folderScanned();
+
+    refreshFolder( folder );
+    StarteamItemCache cache = pinItems();
+    try
+    {
+      for( File file : getFiles( folder, StarteamProjection.STATUS ) )
+      {
+        String path = file.getFullName();
+        int before = myStatusTable.getStatus( myPathTable.find( path ) );
+        try {  file.updateStatus( false, true );  }
+        catch( Exception e )
+        {
+          //  As in the status pass: most probably the latest revision.
+        }
+        recordStatus( path, file );
+        transitions.record( path, before, file.getStatus() );
+      }
+    }
+    finally
+    {
+      unpinItems( cache );
+    }
+
+    for( Folder subFolder : getSubFolders( folder ) )
+      updateStatusRecursively( subFolder, transitions, indicator );
   }
 
   private static void updateStatus(File f) throws IOException {
@@ -596,7 +1170,7 @@ public class StarteamVcs extends AbstractVcs
     final Folder folder = findFolder(folderPath);
     if (folder == null) error(FOLDER_NOT_FOUND_IN_STARTEAM, folderPath);
 
-    folder.refreshItems(folder.getTypeNames().FILE, null, 0);
+    invalidateFiles(folder);
 
     if (findFile(folderPath + SEP + fileName) != null) return;
 
@@ -609,7 +1183,8 @@ public class StarteamVcs extends AbstractVcs
 
     try{
       file.addAndReturn(ioFile, fileName, "", comment, Item.LockType.UNLOCKED, false, true);
-      folder.refreshItems(folder.getTypeNames().FILE, null, 0);
+      invalidateFiles(folder);
+      myViewIndex.added(false, folderPath + SEP + fileName);
     }
     catch(Exception e){
       LOG.debug(e);
@@ -625,7 +1200,7 @@ public class StarteamVcs extends AbstractVcs
     String comment = (String)parameters;
 
     refresh();
-    final File f = findFile(filePath);
+    final File f = findFile(filePath, StarteamProjection.CONTENT);
     if (f == null) error(FILE_NOT_FOUND_IN_STARTEAM, filePath);
 
     try{
@@ -636,7 +1211,9 @@ public class StarteamVcs extends AbstractVcs
         forceCheckin = true;
       }
       f.checkinFrom(new java.io.File((folder.getPath() + "/" + newName).replace('/', SEP)), comment, Item.LockType.UNCHANGED, forceCheckin, false, true);
-      folder.refreshItems(folder.getTypeNames().FILE, null, 0);
+      invalidateFiles(folder);
+      myViewIndex.removed(false, filePath);
+      myViewIndex.added(false, new java.io.File(new java.io.File(filePath).getParentFile(), newName).getPath());
     }
     catch(Exception e){
       LOG.debug(e);
@@ -660,10 +1237,12 @@ public class StarteamVcs extends AbstractVcs
     try{
       folder.setDefaultPathFragment(newName);
       folder.update();
+      myViewIndex.forget(path);
 
-      final File[] files = getFiles( folder );
+      //  The status is read for every file, populate its properties at once.
+      final File[] files = getFiles( folder, StarteamProjection.STATUS );
       for (File file : files) updateStatus(file);
-      folder.refreshItems(folder.getTypeNames().FILE, null, 0);
+      invalidateFiles(folder);
     }
     catch(Exception e){
       LOG.debug(e);
@@ -689,11 +1268,12 @@ public class StarteamVcs extends AbstractVcs
     try{
       folder.setName(newName);
       folder.update();
+      myViewIndex.forget(path);
 
-      final File[] files = getFiles( folder );
+      final File[] files = getFiles( folder, StarteamProjection.STATUS );
       for( int i = 0; i < files.length; i++ )
         updateStatus( files[ i ] );
-      folder.refreshItems(folder.getTypeNames().FILE, null, 0);
+      invalidateFiles(folder);
     }
     catch(Exception e){
       LOG.debug(e);
@@ -723,6 +1303,7 @@ public class StarteamVcs extends AbstractVcs
       folder.setName(newName);
       folder.setDefaultPathFragment(newName);
       folder.update();
+      myViewIndex.forget(path);
 
       //todo check the option about leaving empty folders here
 //      copyDirectoryStructure(folder, addFolder(parentFolder, oldName));
@@ -768,9 +1349,11 @@ public class StarteamVcs extends AbstractVcs
     try{
       folder.move(newParent);
 //      folder.update();
+      myViewIndex.forget(path);
+      myViewIndex.added(true, newFolderPath);
 
-      newParent.refreshItems(newParent.getTypeNames().FILE, null, 0);
-      oldFolder.refreshItems(oldFolder.getTypeNames().FILE, null, 0);
+      invalidateFiles(newParent);
+      invalidateFiles(oldFolder);
 //      newParent.refreshItems(newParent.getTypeNames().FOLDER, null, 1);
 //      oldFolder.refreshItems(oldFolder.getTypeNames().FOLDER, null, 1);
 
@@ -795,7 +1378,8 @@ public class StarteamVcs extends AbstractVcs
       moveAndRenameDirectory(folderPath + SEP + subFolder.getName(), newDirectory.getPath(), newName, parameters);
     }
 
-    final File[] files = getFiles(folder);
+    //  Every file is checked in, populate the folder as the check-in reads it.
+    final File[] files = getFiles(folder, StarteamProjection.CONTENT);
     for (File file : files) {
       moveRenameAndCheckInFile(folderPath + SEP + file.getName(), newFolderPath, file.getName(), parameters);
     }
@@ -815,7 +1399,7 @@ public class StarteamVcs extends AbstractVcs
 
     String comment = (String)parameters;
     refresh();
-    final File f = findFile(filePath);
+    final File f = findFile(filePath, StarteamProjection.CONTENT);
     if (f == null) error(FILE_NOT_FOUND_IN_STARTEAM, filePath);
 
     final Folder newFolder = findFolder(newParentPath);
@@ -828,8 +1412,10 @@ public class StarteamVcs extends AbstractVcs
       f.setName(newName);
       f.checkinFrom(new java.io.File((newParentPath + "/" + newName).replace('/', SEP)), comment, Item.LockType.UNCHANGED, true, false, true);
 
-      newFolder.refreshItems(newFolder.getTypeNames().FILE, null, 0);
-      oldFolder.refreshItems(oldFolder.getTypeNames().FILE, null, 0);
+      invalidateFiles(newFolder);
+      invalidateFiles(oldFolder);
+      myViewIndex.removed(false, filePath);
+      myViewIndex.added(false, newParentPath + SEP + newName);
     }
     catch(Exception e){
       LOG.debug(e);
@@ -848,6 +1434,7 @@ public class StarteamVcs extends AbstractVcs
 
     try{
       addFolder(parent, name);
+      myViewIndex.added(true, parentPath + SEP + name);
     }
     catch(Exception e){
       LOG.debug(e);
@@ -858,6 +1445,8 @@ public class StarteamVcs extends AbstractVcs
   public void refresh() throws VcsException
   {
     if( LOG.isDebugEnabled() ) LOG.debug("enter: refresh()");
+    if( !waitForActivation() ) throw new VcsException( StarteamBundle.message( NOT_CONNECTED_YET ) );
+    if( myView == null ) error( VIEW_NOT_FOUND, myConfiguration.VIEW );
 
     try {
       myView.refreshFolders();
@@ -868,6 +1457,31 @@ public class StarteamVcs extends AbstractVcs
     }
   }
 
+  /**
+   * Refreshes the view and finds out what has changed in the folders the
+   * session holds items for since the previous refresh.
+   *
+   * @return files and folders to be marked dirty, or <code>null</code> if
+   *         there is nothing to compare with and everything has to be.
+   */
+  @Nullable
+  public List<FilePath> refreshChanged( @Nullable ProgressIndicator indicator ) throws VcsException
+  {
+    refresh();
+    //  The listings may be as old as the session, list the folders anew.
+    myViewIndex.clear();
+    try {
+      return myFolderChanges.collect( this, indicator );
+    }
+    catch( ProcessCanceledException e ){
+      throw e;
+    }
+    catch( Exception e ){
+      LOG.debug( e );
+      throw new VcsException( e );
+    }
+  }
+
   private Folder addFolder(final Folder parentFolder, String name)
   {
     final Folder[] folders = getSubFolders(parentFolder);
@@ -885,22 +1499,111 @@ public class StarteamVcs extends AbstractVcs
   }
 
   public Folder[] getSubFolders(Folder folder) {
-    final Item[] items = folder.getItems(myServer.getTypeNames().FOLDER);
+    final Item[] items = folder.getItems(myMetadata.getTypeNames().FOLDER);
     Folder[] result = new Folder[items.length];
     System.arraycopy(items, 0, result, 0, items.length);
     return result;
   }
 
   public File[] getFiles(Folder folder) {
-    final Item[] items = folder.getItems(myServer.getTypeNames().FILE);
+    return getFiles(folder, StarteamProjection.LOOKUP);
+  }
+
+  /**
+   * Files of the folder, populated on the first access with the properties
+   * of the projection (the folder's direct children only).
+   */
+  public File[] getFiles(Folder folder, StarteamProjection projection) {
+    StarteamItemCache cache = myItemCache;
+    if (cache != null) cache.populate(folder, projection.getProperties(myMetadata.getPropertyNames()));
+
+    final Item[] items = folder.getItems(myMetadata.getTypeNames().FILE);
     File[] result = new File[items.length];
     System.arraycopy(items, 0, result, 0, items.length);
+
+    if (cache != null) cache.touch(folder, items.length);
     return result;
   }
 
+  /**
+   * Makes the file items of the folder to be populated anew on the next
+   * access, e.g. after the plugin has changed them.
+   */
+  private void invalidateFiles(Folder folder) {
+    StarteamItemCache cache = myItemCache;
+    if (cache != null) cache.invalidate(folder);
+    else folder.refreshItems(folder.getTypeNames().FILE, null, 0);
+  }
+
+  /**
+   * Makes the file items of the folder to be populated anew on the next
+   * access, if the folder is known at all.
+   */
+  public void invalidateFolderItems( String folderPath )
+  {
+    Folder folder = findFolder( folderPath );
+    if( folder != null )
+      invalidateFiles( folder );
+  }
+
+  /**
+   * Refreshes the file items of the folder itself only - callers walking
+   * the tree refresh every subfolder they descend into anyway. The items
+   * are fetched from the server lazily on the next access.
+   */
   public void refreshFolder( Folder folder )
   {
-    folder.refreshItems(myServer.getTypeNames().FILE, null, -1 );
+    invalidateFiles( folder );
+  }
+
+  @Nullable
+  public StarteamItemCache getItemCache() {  return myItemCache;  }
+
+  /**
+   * Keeps the file items from being discarded while an operation uses them,
+   * see {@link StarteamItemCache#pin}.
+   * @return the cache to be passed to {@link #unpinItems}
+   */
+  @Nullable
+  public StarteamItemCache pinItems()
+  {
+    StarteamItemCache cache = myItemCache;
+    if( cache != null )
+      cache.pin();
+    return cache;
+  }
+
+  public static void unpinItems( @Nullable StarteamItemCache cache )
+  {
+    if( cache != null )
+      cache.unpin();
+  }
+
+  @Nullable
+  public StarteamMetadataCache.ServerMetadata getMetadata() {  return myMetadata;  }
+
+  /**
+   * Sources the repository content is fetched from, the cache agent first.
+   */
+  public StarteamContentSources getContentSources()
+  {
+    StarteamContentSources sources = myContentSources;
+    return (sources != null) ? sources : new StarteamContentSources( null, "" );
+  }
+
+  /**
+   * @return whether the repository has a newer revision of the file, as of
+   *         the last background poll.
+   */
+  public boolean isOutOfDate( VirtualFile file )
+  {
+    return myPoller.isOutOfDate( file.getPath() );
+  }
+
+  public boolean isInView( Folder folder )
+  {
+    View view = myView;
+    return view != null && folder.getView().getID() == view.getID();
   }
 
   public boolean isFileIgnored( VirtualFile file )
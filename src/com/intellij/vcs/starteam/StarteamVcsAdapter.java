@@ -36,8 +36,9 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent, JDOMExternalizable
 {
@@ -158,6 +159,11 @@ public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent,
   //
   // JDOMExternalizable methods
   //
+  /**
+   * Reads the pending changes saved in the workspace file. If there is a
+   * journal, it is at least as recent as the file: it replaces them at
+   * activation and the result is checked against the file system.
+   */
   public void readExternal(final Element element) throws InvalidDataException
   {
     StarteamVcs host = getStarteamVcs();
@@ -169,11 +175,7 @@ public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent,
         if (cclObj instanceof Element)
         {
           final Element currentCLElement = ((Element)cclObj);
-          final String path = currentCLElement.getValue();
-
-          // Safety check - file can be added again between IDE sessions.
-          if( ! new File( path ).exists() )
-            myStarteamVcs.removedFiles.add( path );
+          host.getPendingChanges().addRemovedFile( currentCLElement.getValue() );
         }
       }
 
@@ -189,10 +191,7 @@ public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent,
           {
             final String newName = pathPair.substring( 0, delimIndex );
             final String oldName = pathPair.substring( delimIndex + PATH_DELIMITER.length() );
-
-            // Safety check - file can be deleted or changed between IDE sessions.
-            if( new File( newName ).exists() )
-              myStarteamVcs.renamedFiles.put( newName, oldName );
+            host.getPendingChanges().putRenamed( false, newName, oldName );
           }
         }
       }
@@ -203,11 +202,7 @@ public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent,
         if (cclObj instanceof Element)
         {
           final Element currentCLElement = ((Element)cclObj);
-          final String path = currentCLElement.getValue();
-
-          // Safety check - file can be deleted or changed between IDE sessions.
-          if( new File( path ).exists() )
-            host.newFiles.add( path.toLowerCase() );
+          host.getPendingChanges().addNewFile( currentCLElement.getValue() );
         }
       }
     }
@@ -215,17 +210,22 @@ public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent,
 
   public void writeExternal(final Element element) throws WriteExternalException
   {
+    //  The workspace file is the durable copy of the pending changes, used
+    //  whenever the journal is lost; the journal covers a crash between two
+    //  saves.
     StarteamVcs host = getStarteamVcs();
     if( host != null )
     {
-      writeExternalElement( element, host.removedFiles, PERSISTENCY_REMOVED_TAG );
-      writeExternalElement( element, host.removedFolders, PERSISTENCY_REMOVED_TAG );
-      writeExternalElement( element, host.newFiles, PERSISTENCY_NEW_FILE_TAG );
+      PendingChangeStore.Snapshot pending = host.getPendingChanges().snapshot();
+      writeExternalElement( element, pending.getRemovedFiles(), PERSISTENCY_REMOVED_TAG );
+      writeExternalElement( element, pending.getRemovedFolders(), PERSISTENCY_REMOVED_TAG );
+      writeExternalElement( element, pending.getNewFiles(), PERSISTENCY_NEW_FILE_TAG );
 
-      for( String file : host.renamedFiles.keySet() )
+      Map<String, String> renamedFiles = pending.getRenamedFiles();
+      for( String file : renamedFiles.keySet() )
       {
         final Element listElement = new Element( PERSISTENCY_RENAMED_TAG );
-        final String pathPair = file.concat( PATH_DELIMITER ).concat( host.renamedFiles.get( file ) );
+        final String pathPair = file.concat( PATH_DELIMITER ).concat( renamedFiles.get( file ) );
 
         listElement.addContent( pathPair );
         element.addContent( listElement );
@@ -233,7 +233,7 @@ public class StarteamVcsAdapter extends AbstractVcs implements ProjectComponent,
     }
   }
 
-  private static void writeExternalElement( final Element element, HashSet<String> files, String tag )
+  private static void writeExternalElement( final Element element, Collection<String> files, String tag )
   {
     //  Sort elements of the list so that there is no perturbation in .ipr/.iml
     //  files in the case when no data has changed.
@@ -0,0 +1,75 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings the VFS and the change list up to date with the files an operation
+ * has touched: one asynchronous, non-recursive refresh of all of them, and
+ * one batch of dirty files once the refresh is done - instead of a refresh
+ * under the write lock and a dirty scope per file.
+ */
+public class StarteamVfsRefresher
+{
+  private StarteamVfsRefresher() {}
+
+  public static void refreshAndMarkDirty( final Project project, Collection<VirtualFile> files )
+  {
+    if( files.isEmpty() )
+      return;
+
+    final List<VirtualFile> toRefresh = new ArrayList<VirtualFile>( new LinkedHashSet<VirtualFile>( files ) );
+    LocalFileSystem.getInstance().refreshFiles( toRefresh, true, false, new Runnable()
+    {
+      public void run()
+      {
+        if( !project.isDisposed() )
+          VcsDirtyScopeManager.getInstance( project ).filesDirty( toRefresh, Collections.<VirtualFile>emptyList() );
+      }
+    });
+  }
+
+  /**
+   * Paths gone from the disk have their parent folders refreshed instead.
+   */
+  public static void refreshPathsAndMarkDirty( final Project project, Collection<FilePath> paths )
+  {
+    if( paths.isEmpty() )
+      return;
+
+    final List<FilePath> dirty = new ArrayList<FilePath>( paths );
+    Set<VirtualFile> toRefresh = new LinkedHashSet<VirtualFile>();
+    LocalFileSystem lfs = LocalFileSystem.getInstance();
+    for( FilePath path : paths )
+    {
+      VirtualFile file = lfs.findFileByIoFile( path.getIOFile() );
+      if( file == null && path.getIOFile().getParentFile() != null )
+        file = lfs.findFileByIoFile( path.getIOFile().getParentFile() );
+      if( file != null )
+        toRefresh.add( file );
+    }
+
+    Runnable markDirty = new Runnable()
+    {
+      public void run()
+      {
+        if( !project.isDisposed() )
+          VcsDirtyScopeManager.getInstance( project ).filePathsDirty( dirty, Collections.<FilePath>emptyList() );
+      }
+    };
+    if( toRefresh.isEmpty() )
+      markDirty.run();
+    else
+      lfs.refreshFiles( toRefresh, true, false, markDirty );
+  }
+}
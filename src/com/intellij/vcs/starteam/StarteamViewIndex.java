@@ -0,0 +1,197 @@
+package com.intellij.vcs.starteam;
+
+import com.starbase.starteam.File;
+import com.starbase.starteam.Folder;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Locally cached picture of the view's folder tree: for every folder listed
+ * so far, the names of its files and subfolders as the server reported them.
+ * Listings are recorded whenever the host walks the tree anyway (file and
+ * folder lookups made by the status passes and the vcs operations) and are
+ * patched as the plugin itself adds, removes and renames items, so that the
+ * VFS callbacks can ask whether an item is versioned without a round trip.
+ * <p/>
+ * The index never guesses: for a folder which was not listed yet the answer
+ * is <code>null</code>, and it is up to the caller to find out the hard way.
+ * Folders are keyed by their {@link PathTable} IDs and listings hold the IDs
+ * of the name segments.
+ */
+class StarteamViewIndex
+{
+  private final PathTable myPaths;
+  private final TIntObjectHashMap<Listing> myListings = new TIntObjectHashMap<Listing>();
+
+  StarteamViewIndex( PathTable paths )
+  {
+    myPaths = paths;
+  }
+
+  /**
+   * @return whether the file (or folder) is present in the view, or
+   *         <code>null</code> if the parent folder was never listed.
+   */
+  @Nullable
+  public Boolean contains( boolean isDir, String path )
+  {
+    int id = myPaths.find( path );
+    if( isDir && id != PathTable.NONE && listing( id, false ) != null )
+      return Boolean.TRUE;
+
+    String parentPath = parentOf( path );
+    int parent = (parentPath != null) ? myPaths.find( parentPath ) : PathTable.NONE;
+    Listing listing = listing( parent, false );
+    if( listing == null )
+      return null;
+
+    return listing.contains( isDir, myPaths.findName( nameOf( path ) ) );
+  }
+
+  public void recordFiles( String folderPath, File[] files )
+  {
+    TIntHashSet names = new TIntHashSet( files.length );
+    for( File file : files )
+      names.add( myPaths.internName( file.getName() ) );
+    listing( myPaths.intern( folderPath ), true ).set( false, names );
+  }
+
+  public void recordFolders( String folderPath, Folder[] folders )
+  {
+    TIntHashSet names = new TIntHashSet( folders.length );
+    for( Folder folder : folders )
+      names.add( myPaths.internName( folder.getName() ) );
+    listing( myPaths.intern( folderPath ), true ).set( true, names );
+  }
+
+  /**
+   * Registers the item just added to the view by the plugin.
+   */
+  public void added( boolean isDir, String path )
+  {
+    Listing listing = parentListing( path );
+    if( listing != null )
+      listing.add( isDir, myPaths.internName( nameOf( path ) ) );
+  }
+
+  /**
+   * Registers the item just removed from the view by the plugin. Everything
+   * known below a removed folder is dropped too.
+   */
+  public void removed( boolean isDir, String path )
+  {
+    Listing listing = parentListing( path );
+    if( listing != null )
+      listing.remove( isDir, myPaths.findName( nameOf( path ) ) );
+    if( isDir )
+      forgetSubtree( myPaths.find( path ) );
+  }
+
+  /**
+   * Drops everything known about the folder, its subfolders and its entry in
+   * the parent folder, e.g. after the folder is renamed or moved on the
+   * server. The affected listings are recorded anew on the next lookup.
+   */
+  public void forget( String folderPath )
+  {
+    Listing listing = parentListing( folderPath );
+    if( listing != null )
+      listing.set( true, null );
+    forgetSubtree( myPaths.find( folderPath ) );
+  }
+
+  public synchronized void clear()
+  {
+    myListings.clear();
+  }
+
+  private synchronized void forgetSubtree( int id )
+  {
+    if( id == PathTable.NONE )
+      return;
+
+    myListings.remove( id );
+    for( int key : myListings.keys() )
+    {
+      if( myPaths.isAncestor( id, key ) )
+        myListings.remove( key );
+    }
+  }
+
+  @Nullable
+  private Listing parentListing( String path )
+  {
+    String parentPath = parentOf( path );
+    return (parentPath != null) ? listing( myPaths.find( parentPath ), false ) : null;
+  }
+
+  @Nullable
+  private synchronized Listing listing( int id, boolean create )
+  {
+    if( id == PathTable.NONE )
+      return null;
+
+    Listing listing = myListings.get( id );
+    if( listing == null && create )
+    {
+      listing = new Listing();
+      myListings.put( id, listing );
+    }
+    return listing;
+  }
+
+  @Nullable
+  private static String parentOf( String path )
+  {
+    return new java.io.File( path ).getParent();
+  }
+
+  private static String nameOf( String path )
+  {
+    return new java.io.File( path ).getName();
+  }
+
+  /**
+   * Names of the direct children of a folder. Files and subfolders are
+   * listed by different lookups, so either part may still be unknown.
+   */
+  private static class Listing
+  {
+    private TIntHashSet files;
+    private TIntHashSet folders;
+
+    /**
+     * @return <code>null</code> if this part of the folder was never listed;
+     *         a name never seen before is in no listing.
+     */
+    @Nullable
+    synchronized Boolean contains( boolean isDir, int nameId )
+    {
+      TIntHashSet names = isDir ? folders : files;
+      if( names == null )
+        return null;
+      return (nameId != PathTable.NONE) && names.contains( nameId );
+    }
+
+    synchronized void set( boolean isDir, @Nullable TIntHashSet names )
+    {
+      if( isDir )  folders = names;
+      else         files = names;
+    }
+
+    synchronized void add( boolean isDir, int nameId )
+    {
+      TIntHashSet names = isDir ? folders : files;
+      if( names != null )
+        names.add( nameId );
+    }
+
+    synchronized void remove( boolean isDir, int nameId )
+    {
+      TIntHashSet names = isDir ? folders : files;
+      if( names != null )
+        names.remove( nameId );
+    }
+  }
+}
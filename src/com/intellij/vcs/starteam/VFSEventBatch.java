@@ -0,0 +1,120 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * VFS events collected over one command or write action, collapsed as they
+ * arrive: successive renames and moves of an item become one rename from its
+ * first name to its last one, deletions below an already deleted folder are
+ * dropped, so are deletions of items created again, and so are dirty marks
+ * covered by a recursively dirty folder.
+ * Not thread-safe, VFS events are delivered on the event dispatch thread.
+ */
+class VFSEventBatch
+{
+  private final Map<String, Rename> myRenames = new LinkedHashMap<String, Rename>();
+  private final PathPrefixMap<FilePath> myDeleted = new PathPrefixMap<FilePath>( false );
+  private final PathPrefixMap<VirtualFile> myDirtyDirs = new PathPrefixMap<VirtualFile>( false );
+  private final Map<String, VirtualFile> myDirtyFiles = new LinkedHashMap<String, VirtualFile>();
+
+  public void renamed( boolean isDir, String oldName, String newName )
+  {
+    Rename rename = myRenames.remove( renameKey( isDir, oldName ) );
+    if( rename == null )
+      rename = new Rename( isDir, oldName );
+    rename.to = newName;
+    myRenames.put( renameKey( isDir, newName ), rename );
+  }
+
+  public void deleted( FilePath path )
+  {
+    if( myDeleted.hasAncestor( path.getPath(), true ) )
+      return;
+
+    if( path.isDirectory() )
+      myDeleted.removeDescendants( path.getPath() );
+    myDeleted.put( path.getPath(), path );
+  }
+
+  /**
+   * The item was created anew, it is not deleted any more.
+   */
+  public void created( String path )
+  {
+    myDeleted.remove( path );
+  }
+
+  public void dirty( VirtualFile file )
+  {
+    if( myDirtyDirs.hasAncestor( file.getPath(), false ) )
+      return;
+
+    if( file.isDirectory() )
+    {
+      myDirtyDirs.removeDescendants( file.getPath() );
+      myDirtyDirs.put( file.getPath(), file );
+    }
+    else
+      myDirtyFiles.put( file.getPath(), file );
+  }
+
+  public boolean isEmpty()
+  {
+    return myRenames.isEmpty() && myDeleted.isEmpty() && myDirtyDirs.isEmpty() && myDirtyFiles.isEmpty();
+  }
+
+  /**
+   * @return collapsed renames, in the order the items were first renamed.
+   *         Items which ended up under their original name are left out.
+   */
+  public List<Rename> getRenames()
+  {
+    List<Rename> renames = new ArrayList<Rename>( myRenames.size() );
+    for( Rename rename : myRenames.values() )
+    {
+      if( !rename.from.equals( rename.to ) )
+        renames.add( rename );
+    }
+    return renames;
+  }
+
+  public Collection<FilePath> getDeleted()  {  return myDeleted.values();  }
+
+  public Collection<VirtualFile> getDirtyDirs()  {  return myDirtyDirs.values();  }
+
+  public List<VirtualFile> getDirtyFiles()
+  {
+    List<VirtualFile> files = new ArrayList<VirtualFile>( myDirtyFiles.size() );
+    for( VirtualFile file : myDirtyFiles.values() )
+    {
+      if( !myDirtyDirs.hasAncestor( file.getPath(), true ) )
+        files.add( file );
+    }
+    return files;
+  }
+
+  private static String renameKey( boolean isDir, String path )
+  {
+    return (isDir ? "d:" : "f:") + path;
+  }
+
+  static class Rename
+  {
+    final boolean isDir;
+    final String from;
+    String to;
+
+    private Rename( boolean isDir, String from )
+    {
+      this.isDir = isDir;
+      this.from = from;
+    }
+  }
+}
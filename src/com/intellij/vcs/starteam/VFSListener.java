@@ -1,6 +1,14 @@
 package com.intellij.vcs.starteam;
 
+import com.intellij.openapi.application.ApplicationAdapter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.CommandAdapter;
+import com.intellij.openapi.command.CommandEvent;
+import com.intellij.openapi.command.CommandProcessor;
 import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vcs.*;
 import com.intellij.openapi.vcs.FilePath;
@@ -9,7 +17,6 @@ import com.intellij.openapi.vcs.changes.ChangeListManager;
 import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
 import com.intellij.openapi.vfs.*;
 import com.intellij.vcsUtil.VcsUtil;
-import com.starbase.starteam.vts.comm.CommandException;
 import org.jetbrains.annotations.NonNls;
 
 import java.util.*;
@@ -25,11 +32,39 @@ public class VFSListener extends VirtualFileAdapter
   private final StarteamVcs host;
   private final Project project;
 
+  //  Refactorings deliver thousands of events within one command, so the
+  //  events are collected and applied at once when the command (or the
+  //  write action outside of any command) is finished.
+  private VFSEventBatch batch = new VFSEventBatch();
+
+  private final CommandAdapter commandListener = new CommandAdapter()
+  {
+    public void commandFinished( CommandEvent event )  {  flush();  }
+  };
+  private final ApplicationAdapter writeActionListener = new ApplicationAdapter()
+  {
+    public void writeActionFinished( Object action )
+    {
+      if( CommandProcessor.getInstance().getCurrentCommand() == null )
+        flush();
+    }
+  };
+
   public VFSListener( StarteamVcs host, Project project )
   {
     this.project = project;
     this.host = host;
     adapter = StarteamVcsAdapter.getInstance( project );
+
+    CommandProcessor.getInstance().addCommandListener( commandListener );
+    ApplicationManager.getApplication().addApplicationListener( writeActionListener );
+  }
+
+  public void dispose()
+  {
+    CommandProcessor.getInstance().removeCommandListener( commandListener );
+    ApplicationManager.getApplication().removeApplicationListener( writeActionListener );
+    flush();
   }
 
   public void propertyChanged(VirtualFilePropertyEvent event)
@@ -37,13 +72,9 @@ public class VFSListener extends VirtualFileAdapter
     //  Trace renamed files only if we really working with Starteam.
     if(event.getPropertyName().equals(VirtualFile.PROP_NAME))
     {
-      VirtualFile file = event.getFile();
       //  After any rename/move takes place, mark the affected items as dirty
       //  so that their status is refreshed after the operation.
-      if( file.isDirectory() )
-        VcsDirtyScopeManager.getInstance( host.getProject() ).dirDirtyRecursively( file, true );
-      else
-        VcsDirtyScopeManager.getInstance( host.getProject() ).fileDirty( file );
+      batch.dirty( event.getFile() );
     }
   }
 
@@ -53,21 +84,7 @@ public class VFSListener extends VirtualFileAdapter
     {
       String oldName = event.getFile().getPath();
       String newName = event.getNewParent().getPath() + "/" + event.getFile().getName();
-
-      String prevName = host.renamedFiles.get( oldName );
-      if( host.existsFile( oldName ) || prevName != null )
-      {
-        //  Newer name must refer to the oldest one in the chain of movements
-        if( prevName == null )
-          prevName = oldName;
-
-        //  Check whether we are trying to rename the file back -
-        //  if so, just delete the old key-value pair
-        if( !prevName.equals( newName ) )
-          host.renamedFiles.put( newName, prevName );
-
-        host.renamedFiles.remove( oldName );
-      }
+      batch.renamed( false, oldName, newName );
     }
   }
 
@@ -81,49 +98,46 @@ public class VFSListener extends VirtualFileAdapter
       String parentDir = file.getParent().getPath() + "/";
       String currentName = parentDir + event.getOldValue();
       String newName = parentDir + event.getNewValue();
-
-      String prevName = file.isDirectory() ? host.renamedDirs.get( currentName ) :
-                                             host.renamedFiles.get( currentName );
-      boolean existsItem = existsItem( file.isDirectory(), currentName );
-      if( existsItem || prevName != null )
-      {
-        if( file.isDirectory() )
-          processRename( host.renamedDirs, prevName, currentName, newName );
-        else
-          processRename( host.renamedFiles, prevName, currentName, newName );
-      }
+      batch.renamed( file.isDirectory(), currentName, newName );
     }
   }
 
   /**
-   * We can catch CommandException when the connection is broken. In order
-   * not to miss the transaction, assume "true" in the worst case. 
+   * Applies the collected events: renames go to the pending changes, the
+   * affected items are marked dirty in one call, and the deleted items are
+   * handled according to the deletion confirmation option.
    */
-  private boolean existsItem( boolean isFolder, final String currentName )
+  private void flush()
   {
-    boolean existsItem = true;
-    try{
-      existsItem =  isFolder && host.existsFolder( currentName ) ||
-                   !isFolder && host.existsFile( currentName );
-    }
-    catch( CommandException e ){
-      //  Nothing to do, assume "true" by default.
-    }
-    return existsItem;
-  }
+    if( batch.isEmpty() )
+      return;
 
-  private static void processRename( HashMap<String, String> renamedItems, String prevName, String currName, String newName )
-  {
-    //  Newer name must refer to the oldest one in the chain of renamings
-    if( prevName == null )
-      prevName = currName;
+    VFSEventBatch events = batch;
+    batch = new VFSEventBatch();
 
-    //  Check whether we are trying to rename the file back -
-    //  if so, just delete the old key-value pair
-    if( !prevName.equals( newName ) )
-      renamedItems.put( newName, prevName );
+    //  Only items which reside in the repository are traced, the reconciler
+    //  finds out which ones do.
+    PendingChangeStore pending = host.getPendingChanges();
+    for( VFSEventBatch.Rename rename : events.getRenames() )
+    {
+      //  Files scheduled for addition are known by their current name only
+      //  (also when it differs from the previous one in the letter case).
+      if( !rename.isDir && pending.isNewFile( rename.from ) )
+      {
+        pending.removeNewFile( rename.from );
+        pending.addNewFile( rename.to );
+      }
+      else
+        host.getReconciler().renamed( rename.isDir, rename.from, rename.to );
+    }
+
+    if( !events.getDeleted().isEmpty() )
+      processDeleted( new ArrayList<FilePath>( events.getDeleted() ) );
 
-    renamedItems.remove( currName );
+    List<VirtualFile> dirtyFiles = events.getDirtyFiles();
+    Collection<VirtualFile> dirtyDirs = events.getDirtyDirs();
+    if( !dirtyFiles.isEmpty() || !dirtyDirs.isEmpty() )
+      VcsDirtyScopeManager.getInstance( project ).filesDirty( dirtyFiles, dirtyDirs );
   }
 
   public void fileCreated( VirtualFileEvent event )
@@ -140,9 +154,9 @@ public class VFSListener extends VirtualFileAdapter
       return;
 
     //  In the case when the project content is synchronized over the
-    //  occasionally removed files.
-    host.removedFiles.remove( path );
-    host.removedFolders.remove( path );
+    //  occasionally removed files. The deletion may still wait in the batch.
+    batch.created( path );
+    host.getPendingChanges().unremove( path );
 
     //  Do not ask user if the files created came from the vcs per se
     //  (obviously they are not new).
@@ -189,9 +203,6 @@ public class VFSListener extends VirtualFileAdapter
 
   public void beforeFileDeletion( VirtualFileEvent event )
   {
-    @NonNls final String TITLE = "Delete file(s)";
-    @NonNls final String MESSAGE = "Do you want to schedule the following file for deletion from Starteam?\n{0}";
-
     VirtualFile file = event.getFile();
 
     //  In the case of multi-vcs project configurations, we need to skip all
@@ -218,87 +229,98 @@ public class VFSListener extends VirtualFileAdapter
       }
       else
       {
-        VcsShowConfirmationOption option = host.getDelConfirmation();
-
-        //  In the case when we need to perform "Delete" vcs action right upon
-        //  the file's creation, put the file into the host's cache until it
-        //  will be analyzed by the ChangeProvider.
-        if( option.getValue() == VcsShowConfirmationOption.Value.DO_ACTION_SILENTLY )
-        {
-          deleteFileViaCheckinEnv( file );
-        }
-        else
-        if( option.getValue() == VcsShowConfirmationOption.Value.SHOW_CONFIRMATION )
-        {
-          List<VirtualFile> files = new ArrayList<VirtualFile>();
-          files.add( file );
-
-          AbstractVcsHelper helper = AbstractVcsHelper.getInstance( project );
-          Collection<VirtualFile> filesToAdd =
-            helper.selectFilesToProcess( files, TITLE, null, TITLE, MESSAGE, option );
-
-          if( filesToAdd != null )
-          {
-            deleteFileViaCheckinEnv( file );
-          }
-          else
-          {
-            sheduleForRemove( file );
-          }
-        }
-        else
-        {
-          sheduleForRemove( file );
-        }
+        //  The file is gone by the time the batch is applied, remember
+        //  its path and kind now.
+        batch.deleted( VcsContextFactory.SERVICE.getInstance().createFilePathOn( file ) );
       }
     }
   }
 
-  private void deleteFileViaCheckinEnv( VirtualFile file )
+  private void processDeleted( final List<FilePath> files )
   {
-    List<FilePath> list = new ArrayList<FilePath>();
-    FilePath path = VcsContextFactory.SERVICE.getInstance().createFilePathOn( file );
-    list.add( path );
+    VcsShowConfirmationOption option = host.getDelConfirmation();
 
-    host.getCheckinEnvironment().scheduleMissingFileForDeletion( list );
+    //  In the case when we need to perform "Delete" vcs action right upon
+    //  the file's deletion, remove the files from the repository at once,
+    //  otherwise put them into the host's cache until they will be
+    //  analyzed by the ChangeProvider.
+    if( option.getValue() == VcsShowConfirmationOption.Value.DO_ACTION_SILENTLY )
+    {
+      //  The task is started once the command is over.
+      ApplicationManager.getApplication().invokeLater( new Runnable() {
+        public void run()  {  deleteFilesViaCheckinEnv( files );  }
+      });
+    }
+    else
+    if( option.getValue() == VcsShowConfirmationOption.Value.SHOW_CONFIRMATION )
+    {
+      //  One confirmation for the whole batch rather than one per file.
+      ApplicationManager.getApplication().invokeLater( new Runnable() {
+        public void run()  {  confirmDeletion( files );  }
+      });
+    }
+    else
+    {
+      for( FilePath file : files )
+        sheduleForRemove( file );
+    }
   }
-  
-  private void sheduleForRemove( VirtualFile file )
+
+  private void confirmDeletion( List<FilePath> files )
   {
-    String path = file.getPath();
+    @NonNls final String TITLE = "Delete file(s)";
+    @NonNls final String MESSAGE = "Do you want to schedule the following file for deletion from Starteam?\n{0}";
 
-    //  Trace only those files which are really reside in the
-    //  repository and are needed in commands to the Starteam server.
-    if( file.isDirectory() && host.existsFolder( path ) )
+    if( project.isDisposed() )
+      return;
+
+    AbstractVcsHelper helper = AbstractVcsHelper.getInstance( project );
+    Collection<FilePath> filesToDelete =
+      helper.selectFilePathsToProcess( files, TITLE, null, TITLE, MESSAGE, host.getDelConfirmation() );
+
+    List<FilePath> rest = new ArrayList<FilePath>( files );
+    if( filesToDelete != null && !filesToDelete.isEmpty() )
     {
-      host.removedFoldersNameMap.put( file, path );
-      markSubfolderStructure( path );
-      host.removedFolders.add( path );
+      deleteFilesViaCheckinEnv( new ArrayList<FilePath>( filesToDelete ) );
+      rest.removeAll( filesToDelete );
     }
-    else
-    if( host.existsFile( path ) )
-      host.removedFiles.add( path );
+
+    for( FilePath file : rest )
+      sheduleForRemove( file );
   }
 
   /**
-   * When adding new path into the list of the removed folders, remove from
-   * that list all files/folders which were removed previously locating under
-   * the given one (including it).
+   * Removes the files from the repository in a background task, the server
+   * batches are not to freeze the event thread. Called on the event thread.
    */
-  private void  markSubfolderStructure( String path )
+  private void deleteFilesViaCheckinEnv( final List<FilePath> files )
   {
-    for( Iterator<String> it = host.removedFiles.iterator(); it.hasNext(); )
-    {
-      String strFile = it.next();
-      if( strFile.startsWith( path ) )
-       it.remove();
-    }
-    for( Iterator<String> it = host.removedFolders.iterator(); it.hasNext(); )
+    if( project.isDisposed() )
+      return;
+
+    final String title = StarteamBundle.message( "action.name.delete.files" );
+    ProgressManager.getInstance().run( new Task.Backgroundable( project, title, false )
     {
-      String strFile = it.next();
-      if( strFile.startsWith( path ) )
-       it.remove();
-    }
+      private List<VcsException> errors = Collections.emptyList();
+
+      public void run( ProgressIndicator indicator )
+      {
+        errors = host.getCheckinEnvironment().scheduleMissingFileForDeletion( files );
+      }
+
+      public void onSuccess()
+      {
+        if( !project.isDisposed() && !errors.isEmpty() )
+          AbstractVcsHelper.getInstance( project ).showErrors( errors, title );
+      }
+    });
+  }
+  
+  private void sheduleForRemove( FilePath file )
+  {
+    //  Trace only those files which are really reside in the
+    //  repository and are needed in commands to the Starteam server.
+    host.getReconciler().removed( file.isDirectory(), file.getPath() );
   }
 
   /**
@@ -5,26 +5,26 @@ import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FileStatus;
 import com.intellij.openapi.vcs.FileStatusManager;
 import com.intellij.openapi.vcs.VcsException;
-import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.starteam.StarteamBundle;
 import com.intellij.vcs.starteam.StarteamVcs;
 
+import java.util.List;
+
 /**
  * @author LloiX
  */
 public class AddAction extends BasicAction
 {
-  protected void perform(Project project, StarteamVcs vcs, VirtualFile file) throws VcsException
+  protected void perform(Project project, StarteamVcs vcs, VirtualFile file, List<VirtualFile> touched) throws VcsException
   {
     //  Perform only moving the file into normal changelist with the
     //  proper status "ADDED". After that the file can be submitted into
     //  the repository via "Commit" dialog.
+    //  The file is refreshed and marked dirty along with the rest of the
+    //  selection once all of it is processed.
     vcs.add2NewFile( file );
-
-    VcsDirtyScopeManager mgr = VcsDirtyScopeManager.getInstance( project );
-    mgr.fileDirty( file );
-    file.refresh( true, true );
+    touched.add( file );
   }
 
   protected boolean isEnabled( Project project, AbstractVcs vcs, VirtualFile file )
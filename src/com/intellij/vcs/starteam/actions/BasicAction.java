@@ -7,26 +7,49 @@ import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.PlatformDataKeys;
 import com.intellij.openapi.actionSystem.Presentation;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ContentIterator;
 import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vcs.*;
-import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.starteam.StarteamBundle;
+import com.intellij.vcs.starteam.StarteamItemCache;
 import com.intellij.vcs.starteam.StarteamVcs;
 import com.intellij.vcs.starteam.StarteamVcsAdapter;
+import com.intellij.vcs.starteam.StarteamVfsRefresher;
 import com.intellij.vcsUtil.VcsUtil;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Performs the action over every selected file. By default the selection
+ * is processed in a cancellable background task, by up to
+ * {@link #getParallelism()} files at a time; the errors are collected and
+ * reported together once all files are done. The files the action has
+ * touched are then refreshed and marked dirty in one batch.
+ *
  * @author mike
  */
 public abstract class BasicAction extends AnAction {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vcs.starteam.actions.BasicAction");
+
+  //  The files share one SDK session, which is not known to be safe for
+  //  concurrent use: one file at a time, as the rollback and the checkin do.
+  protected static final int DEFAULT_PARALLELISM = 1;
+
   public void actionPerformed(AnActionEvent e) {
     final Project project = e.getData(PlatformDataKeys.PROJECT);
     final VirtualFile[] files = VcsUtil.getVirtualFiles(e);
@@ -47,31 +70,174 @@ public abstract class BasicAction extends AnAction {
       FileDocumentManager.getInstance().saveAllDocuments();
     }
 
+    if (!confirm(project, files)) return;
+
     final String actionName = getActionName();
+    final String title = actionName != null ? actionName : starteamVcs.getDisplayName();
+    final AbstractVcsHelper helper = AbstractVcsHelper.getInstance(project);
+    final LocalHistoryAction action = LocalHistory.getInstance().startAction(actionName);
+    final AbstractVcs host = starteamVcs;
+
+    if (!isInBackground()) {
+      try {
+        List<VcsException> exceptions = new ArrayList<VcsException>();
+        List<VirtualFile> touched = new ArrayList<VirtualFile>();
+        runTransaction(project, host, files, null, exceptions, touched);
+        afterPerform(project, touched);
+        helper.showErrors(exceptions, title);
+      }
+      finally {
+        action.finish();
+      }
+      return;
+    }
+
+    ProgressManager.getInstance().run(new Task.Backgroundable(project, title, true) {
+      private final List<VcsException> exceptions = Collections.synchronizedList(new ArrayList<VcsException>());
+      private final List<VirtualFile> touched = Collections.synchronizedList(new ArrayList<VirtualFile>());
+
+      public void run(ProgressIndicator indicator) {
+        runTransaction(project, host, files, indicator, exceptions, touched);
+      }
+
+      public void onSuccess() {
+        finish();
+      }
+
+      public void onCancel() {
+        finish();
+      }
+
+      private void finish() {
+        action.finish();
+        if (project.isDisposed()) return;
+        afterPerform(project, touched);
+        helper.showErrors(new ArrayList<VcsException>(exceptions), title);
+      }
+    });
+  }
+
+  /**
+   * Asks the user, on the event thread, whatever {@link #perform} would
+   * otherwise have to ask file by file.
+   *
+   * @return whether to go on with the action.
+   */
+  protected boolean confirm(Project project, VirtualFile[] files) {
+    return true;
+  }
+
+  /**
+   * @return whether the action is performed in a background task; actions
+   *         showing UI from {@link #perform} have to stay on the event thread.
+   */
+  protected boolean isInBackground() {
+    return true;
+  }
+
+  /**
+   * @return the number of selected files the action is performed on at once;
+   *         more than one only for actions safe to run on several threads.
+   */
+  protected int getParallelism() {
+    return DEFAULT_PARALLELISM;
+  }
 
+  private void runTransaction(final Project project, final AbstractVcs host, final VirtualFile[] files,
+                              final ProgressIndicator indicator, final List<VcsException> exceptions,
+                              final List<VirtualFile> touched) {
     AbstractVcsHelper helper = AbstractVcsHelper.getInstance(project);
-    LocalHistoryAction action = LocalHistory.getInstance().startAction(actionName);
+    List transactionErrors = helper.runTransactionRunnable(host, new TransactionRunnable() {
+      public void run(List ignored) {
+        //  Keep the items the workers are using from being evicted under them.
+        StarteamItemCache cache = ((StarteamVcs)host).pinItems();
+        try {
+          if (indicator == null || getParallelism() <= 1 || files.length == 1) {
+            executeAll(project, host, files, indicator, new AtomicInteger(), new AtomicInteger(), exceptions, touched);
+          }
+          else {
+            executeInParallel(project, host, files, indicator, exceptions, touched);
+          }
+        }
+        finally {
+          StarteamVcs.unpinItems(cache);
+        }
+      }
+    }, null);
+    for (Object error : transactionErrors) {
+      if (error instanceof VcsException) exceptions.add((VcsException)error);
+    }
+  }
 
-    try {
-      final AbstractVcs host = starteamVcs;
-      List exceptions = helper.runTransactionRunnable(starteamVcs, new TransactionRunnable() {
-        public void run(List exceptions) {
-          for (VirtualFile file : files) {
-            try {
-              execute(project, host, file);
-            }
-            catch (VcsException ex) {
-              ex.setVirtualFile(file);
-              exceptions.add(ex);
+  private void executeInParallel(final Project project, final AbstractVcs host, final VirtualFile[] files,
+                                 final ProgressIndicator indicator, final List<VcsException> exceptions,
+                                 final List<VirtualFile> touched) {
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger done = new AtomicInteger();
+    int workers = Math.min(getParallelism(), files.length);
+
+    List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+    for (int i = 0; i < workers; i++) {
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        public void run() {
+          //  Let checkCanceled() in the worker see the task's indicator.
+          ProgressManager.getInstance().runProcess(new Runnable() {
+            public void run() {
+              executeAll(project, host, files, indicator, next, done, exceptions, touched);
             }
-          }
+          }, indicator);
         }
-      }, null);
+      }));
+    }
 
-      helper.showErrors(exceptions, actionName != null ? actionName : starteamVcs.getDisplayName());
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        indicator.cancel();
+      }
+      catch (ExecutionException ex) {
+        if (!(ex.getCause() instanceof ProcessCanceledException)) LOG.error(ex.getCause());
+      }
     }
-    finally {
-      action.finish();
+  }
+
+  /**
+   * Takes the files one by one from the shared position <code>next</code>
+   * until there are none left or the action is cancelled.
+   */
+  private void executeAll(Project project, AbstractVcs host, VirtualFile[] files, ProgressIndicator indicator,
+                          AtomicInteger next, AtomicInteger done, List<VcsException> exceptions,
+                          List<VirtualFile> touched) {
+    for (int i = next.getAndIncrement(); i < files.length; i = next.getAndIncrement()) {
+      if (indicator != null) {
+        if (indicator.isCanceled()) return;
+        indicator.setText2(files[i].getPresentableUrl());
+      }
+
+      try {
+        execute(project, host, files[i], touched);
+      }
+      catch (VcsException ex) {
+        ex.setVirtualFile(files[i]);
+        exceptions.add(ex);
+      }
+      catch (ProcessCanceledException ex) {
+        throw ex;
+      }
+      catch (RuntimeException ex) {
+        //  SDK failures (lost connection, server errors) come unchecked.
+        LOG.debug(ex);
+        VcsException vcsEx = new VcsException(ex);
+        vcsEx.setVirtualFile(files[i]);
+        exceptions.add(vcsEx);
+      }
+
+      if (indicator != null) {
+        indicator.setFraction((double)done.incrementAndGet() / files.length);
+      }
     }
   }
 
@@ -115,59 +281,98 @@ public abstract class BasicAction extends AnAction {
   }
 
 
-  private void execute(final Project project, final AbstractVcs activeVcs, final VirtualFile file) throws VcsException {
-    final VcsException[] e = new VcsException[1];
+  private void execute(final Project project, final AbstractVcs activeVcs, final VirtualFile file,
+                       final List<VirtualFile> touched) throws VcsException {
+    VcsException e = null;
 
     try {
-      performOnItem(project, activeVcs, file);
+      performOnItem(project, activeVcs, file, touched);
     }
     catch (VcsException exc) {
-      e[0] = exc;
+      e = exc;
     }
 
-    if (file.isDirectory() && e[0] != null) {
+    if (file.isDirectory() && e != null) {
       //  Iterate over only those files which are actually the part of the
       //  project structure. Do not touch the whole underlying directory
       //  structure since there can be numerous auxiliary folders like ".sbas"
-      //  which should be skipped.
-
-      final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(project).getFileIndex();
-      fileIndex.iterateContentUnderDirectory(file, new ContentIterator() {
-        public boolean processFile(VirtualFile itFile) {
-          //  Perverse way to store the exception from the anonymous ContentIterator
-          //  implementor.
-          try {
-            performOnItem(project, activeVcs, file);
-          }
-          catch (VcsException exc) {
-            //  Store only the first exception to keep track the earliet problem.
-            //  But try to iterate over the whole subproject tree, e.g. to eliminate
-            //  possible single mistake.
-            if (e[0] == null) e[0] = exc;
-          }
-
-          return true;
+      //  which should be skipped. The content is collected first, the file
+      //  index is not to be held while talking to the server.
+      final List<VirtualFile> content = new ArrayList<VirtualFile>();
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        public void run() {
+          final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+          fileIndex.iterateContentUnderDirectory(file, new ContentIterator() {
+            public boolean processFile(VirtualFile itFile) {
+              if (!itFile.isDirectory()) content.add(itFile);
+              return true;
+            }
+          });
         }
       });
+
+      //  Report only the first exception to keep track the earliet problem.
+      //  But try to iterate over the whole subproject tree, e.g. to eliminate
+      //  possible single mistake.
+      e = null;
+      for (VirtualFile itFile : content) {
+        try {
+          performOnItem(project, activeVcs, itFile, touched);
+        }
+        catch (VcsException exc) {
+          if (e == null) e = exc;
+        }
+      }
     }
 
     //  Rethrow the accumulated exception.
-    if (e[0] != null) throw e[0];
+    if (e != null) throw e;
   }
 
-  private void performOnItem(final Project project, final AbstractVcs activeVcs, final VirtualFile file) throws VcsException {
-    perform(project, (StarteamVcs)activeVcs, file);
-    VcsDirtyScopeManager.getInstance(project).fileDirty(file);
-    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+  /**
+   * @return paths of the files (not directories) under the directory which
+   *         are part of the project content.
+   */
+  protected static List<String> collectContentFiles(final Project project, final VirtualFile dir) {
+    final List<String> paths = new ArrayList<String>();
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
       public void run() {
-        file.refresh(false, true);
+        ProjectRootManager.getInstance(project).getFileIndex().iterateContentUnderDirectory(dir, new ContentIterator() {
+          public boolean processFile(VirtualFile file) {
+            if (!file.isDirectory()) paths.add(file.getPresentableUrl());
+            return true;
+          }
+        });
       }
     });
+    return paths;
+  }
+
+  private void performOnItem(final Project project, final AbstractVcs activeVcs, final VirtualFile file,
+                             final List<VirtualFile> touched) throws VcsException {
+    perform(project, (StarteamVcs)activeVcs, file, touched);
+  }
+
+  /**
+   * Refreshes the touched files and marks them dirty, all in one batch.
+   */
+  private static void afterPerform(final Project project, final List<VirtualFile> touched) {
+    List<VirtualFile> files;
+    synchronized (touched) {
+      files = new ArrayList<VirtualFile>(touched);
+    }
+    StarteamVfsRefresher.refreshAndMarkDirty(project, files);
   }
 
   protected abstract String getActionName();
 
   protected abstract boolean isEnabled(Project project, AbstractVcs vcs, VirtualFile file);
 
-  protected abstract void perform(Project project, final StarteamVcs activeVcs, VirtualFile file) throws VcsException;
+  /**
+   * @param touched collects the files the action has actually changed on
+   *                disk or in the repository, to be refreshed afterwards;
+   *                shared by the workers.
+   */
+  protected abstract void perform(Project project, final StarteamVcs activeVcs, VirtualFile file,
+                                  List<VirtualFile> touched) throws VcsException;
 }
@@ -1,6 +1,7 @@
 package com.intellij.vcs.starteam.actions;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FileStatus;
 import com.intellij.openapi.vcs.FileStatusManager;
@@ -11,13 +12,46 @@ import com.intellij.vcs.starteam.StarteamVcs;
 import com.intellij.vcsUtil.VcsUtil;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
+ * Checks the files out in the background. Files changed locally are
+ * confirmed once for the whole selection before the checkout starts, the
+ * workers do not ask file by file.
+ *
  * @author mike
  */
 public class CheckoutAction extends BasicAction
 {
-  protected void perform(Project project, final StarteamVcs activeVcs, final VirtualFile file) throws VcsException
+  protected boolean confirm( Project project, VirtualFile[] files )
+  {
+    ArrayList<VirtualFile> fileList = new ArrayList<VirtualFile>();
+    for( VirtualFile file : files )
+    {
+      if( file.isDirectory() )
+        VcsUtil.collectFiles( file, fileList, true, false );
+      else
+        fileList.add( file );
+    }
+
+    FileStatusManager statusManager = FileStatusManager.getInstance( project );
+    int changed = 0;
+    for( VirtualFile vFile : fileList )
+    {
+      FileStatus status = statusManager.getStatus( vFile );
+      if( status == FileStatus.MODIFIED || status == FileStatus.MERGE || status == FileStatus.MERGED_WITH_CONFLICTS )
+        changed++;
+    }
+    if( changed == 0 )
+      return true;
+
+    int result = Messages.showYesNoDialog( project, StarteamBundle.message( "confirmation.text.checkout.files.changed", changed ),
+                                           StarteamBundle.message( "confirmation.title" ), Messages.getWarningIcon() );
+    return result == 0;
+  }
+
+  protected void perform(Project project, final StarteamVcs activeVcs, final VirtualFile file,
+                         List<VirtualFile> touched) throws VcsException
   {
     //  Starteam does not support issuing the CheckOut command on the folder
     //  per se, thus base class has to enumerate over project structure for
@@ -25,7 +59,8 @@ public class CheckoutAction extends BasicAction
     //  of them. 
     if( !file.isDirectory() )
     {
-      activeVcs.checkoutFile( file.getPresentableUrl() );
+      if( activeVcs.checkoutFile( file.getPresentableUrl(), false ) )
+        touched.add( file );
     }
     else
     {
@@ -33,7 +68,8 @@ public class CheckoutAction extends BasicAction
       VcsUtil.collectFiles( file, fileList, true, false );
       for( VirtualFile vFile : fileList )
       {
-        activeVcs.checkoutFile( vFile.getPresentableUrl() );
+        if( activeVcs.checkoutFile( vFile.getPresentableUrl(), false ) )
+          touched.add( vFile );
       }
     }
   }
@@ -1,16 +1,23 @@
 package com.intellij.vcs.starteam.actions;
 
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ContentIterator;
-import com.intellij.openapi.roots.ProjectFileIndex;
-import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FileStatus;
 import com.intellij.openapi.vcs.FileStatusManager;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.starteam.StarteamBundle;
 import com.intellij.vcs.starteam.StarteamVcs;
+import com.intellij.vcs.starteam.StarteamVcsAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author mike
@@ -22,38 +29,53 @@ public class LockAction extends BasicAction
   }
 
   protected boolean isEnabled(Project project, AbstractVcs vcs, VirtualFile file) {
-    return FileStatusManager.getInstance( project ).getStatus( file ) != FileStatus.ADDED;
+    if (FileStatusManager.getInstance( project ).getStatus( file ) == FileStatus.ADDED) return false;
+
+    //  Files known to be locked by the current user already need no locking.
+    StarteamVcs host = ((StarteamVcsAdapter)vcs).getStarteamVcs();
+    return file.isDirectory() || host == null || !host.isLockedByMe( file );
   }
 
-  protected void perform(Project project, final StarteamVcs activeVcs, final VirtualFile file) throws VcsException
+  protected void perform(Project project, final StarteamVcs activeVcs, final VirtualFile file,
+                         List<VirtualFile> touched) throws VcsException
   {
-    if( file.isDirectory() )
+    lockFiles( project, activeVcs, file, true, touched );
+  }
+
+  /**
+   * Locks (unlocks) the file, or all files under the directory with one bulk
+   * call; the failures are reported together. The files locked (unlocked)
+   * are added to <code>touched</code>, their read-only flag may have changed,
+   * also when the action is cancelled half way.
+   */
+  static void lockFiles( Project project, StarteamVcs host, VirtualFile file, boolean lock,
+                         List<VirtualFile> touched ) throws VcsException
+  {
+    List<String> paths = file.isDirectory() ? collectContentFiles( project, file )
+                                            : Collections.singletonList( file.getPresentableUrl() );
+    ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    Map<String, VcsException> results = host.lockFiles( paths, lock, indicator );
+
+    List<String> failures = new ArrayList<String>();
+    LocalFileSystem lfs = LocalFileSystem.getInstance();
+    for( Map.Entry<String, VcsException> result : results.entrySet() )
     {
-      final VcsException[] errors = new VcsException[ 1 ];
-      final ProjectFileIndex fileIndex = ProjectRootManager.getInstance( project ).getFileIndex();
-
-      //-----------------------------------------------------------------------
-      //  Iterate over the diferctory structure starting from the given package
-      //  root, and lock each file.
-      //  NB: an exception is thrown only for the first failure.
-      //-----------------------------------------------------------------------
-      fileIndex.iterateContentUnderDirectory( file, new ContentIterator()
-        {
-          public boolean processFile( VirtualFile file )
-          {
-            if( !file.isDirectory() )
-            {
-              try { activeVcs.lockFile( file.getPresentableUrl() ); }
-              catch( VcsException e ) { if( errors[ 0 ] != null ) errors[ 0 ] = e;  }
-            }
-            return true;
-          }
-        } );
-
-      if( errors[ 0 ] != null )
-        throw errors[ 0 ];
+      if( result.getValue() == null )
+      {
+        VirtualFile done = lfs.findFileByPath( FileUtil.toSystemIndependentName( result.getKey() ) );
+        if( done != null )
+          touched.add( done );
+        continue;
+      }
+      failures.add( result.getKey() + ": " + result.getValue().getMessage() );
     }
-    else
-      activeVcs.lockFile( file.getPresentableUrl() );
+
+    //  Only now, the files handled before the cancel are in touched.
+    if( indicator != null )
+      indicator.checkCanceled();
+    if( failures.size() == 1 && paths.size() == 1 )
+      throw results.values().iterator().next();
+    if( !failures.isEmpty() )
+      throw new VcsException( failures );
   }
 }
@@ -7,6 +7,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.starteam.StarteamBundle;
 import com.intellij.vcs.starteam.StarteamVcs;
 
+import java.util.List;
+
 /**
  * @author ddmoore
  */
@@ -19,7 +21,12 @@ public class ReconnectAction extends BasicAction {
     return StarteamBundle.message("local.vcs.action.name.reconnecting");
   }
 
-  protected void perform(Project project, StarteamVcs activeVcs, VirtualFile file) throws VcsException {
+  //  One reconnect at a time, whatever the selection.
+  protected int getParallelism() {
+    return 1;
+  }
+
+  protected void perform(Project project, StarteamVcs activeVcs, VirtualFile file, List<VirtualFile> touched) throws VcsException {
     activeVcs.doShutdown();
     activeVcs.doStart();
   }
@@ -1,38 +1,78 @@
 package com.intellij.vcs.starteam.actions;
 
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlatformDataKeys;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
-import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.starteam.StarteamBundle;
 import com.intellij.vcs.starteam.StarteamVcs;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * Refreshes the view once, whatever is selected, and marks dirty only the
+ * files and folders which have changed in the repository since the previous
+ * refresh.
+ *
  * @author mike
  */
-public class RefreshAction extends BasicAction
+public class RefreshAction extends AnAction
 {
-  protected String getActionName() {
-    return StarteamBundle.message("local.vcs.action.name.refresh");
+  public void update(AnActionEvent e) {
+    super.update(e);
+    BasicAction.updateStarteamAction(e, null);
   }
 
-  protected boolean isEnabled(Project project, AbstractVcs vcs, VirtualFile file) {
-    return true;
-  }
+  public void actionPerformed(AnActionEvent e) {
+    final Project project = e.getData(PlatformDataKeys.PROJECT);
+    if (project == null) return;
+    final StarteamVcs host = (StarteamVcs)StarteamVcs.getInstance(project);
+    if (host == null) return;
+
+    final VcsException[] error = new VcsException[1];
+    final List<FilePath> changed = new ArrayList<FilePath>();
+    final boolean[] everything = new boolean[1];
+    boolean completed = ProgressManager.getInstance().runProcessWithProgressSynchronously(new Runnable() {
+      public void run() {
+        try {
+          List<FilePath> paths = host.refreshChanged(ProgressManager.getInstance().getProgressIndicator());
+          if (paths == null) everything[0] = true;
+          else changed.addAll(paths);
+        }
+        catch (VcsException ex) {
+          error[0] = ex;
+        }
+      }
+    }, StarteamBundle.message("local.vcs.action.name.refresh"), true, project);
 
-  protected void perform( final Project project, StarteamVcs activeVcs, VirtualFile file) throws VcsException
-  {
-    try{
-      activeVcs.refresh();
-      ApplicationManager.getApplication().runReadAction( new Runnable() {
-        public void run() {  VcsDirtyScopeManager.getInstance( project ).markEverythingDirty(); }
-      });
+    if (!completed) return;
+    if (error[0] != null) {
+      Messages.showMessageDialog(project, error[0].getMessage(), StarteamBundle.message("message.title.action.error"), Messages.getErrorIcon());
+      return;
     }
-    catch(VcsException ex){
-      Messages.showMessageDialog(project, ex.getMessage(), StarteamBundle.message("message.title.action.error"), Messages.getErrorIcon());
+
+    VcsDirtyScopeManager dirtyScopeManager = VcsDirtyScopeManager.getInstance(project);
+    if (everything[0]) {
+      host.getStatusTable().invalidateAll();
+      dirtyScopeManager.markEverythingDirty();
+      return;
+    }
+
+    List<FilePath> files = new ArrayList<FilePath>();
+    List<FilePath> dirs = new ArrayList<FilePath>();
+    for (FilePath path : changed) {
+      if (path.isDirectory()) dirs.add(path);
+      else {
+        host.invalidateStatus(path.getPath());
+        files.add(path);
+      }
     }
+    dirtyScopeManager.filePathsDirty(files, dirs);
   }
 }
@@ -18,6 +18,7 @@ import com.intellij.vcs.starteam.StarteamVcs;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author mike
@@ -33,7 +34,8 @@ public class ShowDiffAction extends BasicAction
     return document.getText().getBytes(file.getCharset().name());
   }
 
-  protected void perform(Project project, StarteamVcs activeVcs, VirtualFile file) throws VcsException
+  //  Nothing is touched, the diff only reads.
+  protected void perform(Project project, StarteamVcs activeVcs, VirtualFile file, List<VirtualFile> touched) throws VcsException
   {
     try {
       byte[] localContent = getContentOf(file);
@@ -81,4 +83,9 @@ public class ShowDiffAction extends BasicAction
   protected String getActionName() {
     return null;
   }
+
+  //  The diff is shown from perform().
+  protected boolean isInBackground() {
+    return false;
+  }
 }
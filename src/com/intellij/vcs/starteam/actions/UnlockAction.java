@@ -1,16 +1,17 @@
 package com.intellij.vcs.starteam.actions;
 
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ContentIterator;
-import com.intellij.openapi.roots.ProjectFileIndex;
-import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FileStatus;
 import com.intellij.openapi.vcs.FileStatusManager;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcs.starteam.StarteamBundle;
+import com.intellij.vcs.starteam.StarteamStatusTable;
 import com.intellij.vcs.starteam.StarteamVcs;
+import com.intellij.vcs.starteam.StarteamVcsAdapter;
+
+import java.util.List;
 
 /**
  * @author mike
@@ -22,38 +23,16 @@ public class UnlockAction extends BasicAction
   }
 
   protected boolean isEnabled(Project project, AbstractVcs vcs, VirtualFile file) {
-    return FileStatusManager.getInstance( project ).getStatus( file) != FileStatus.ADDED;
+    if (FileStatusManager.getInstance( project ).getStatus( file) == FileStatus.ADDED) return false;
+
+    //  Files known to be unlocked have nothing to unlock.
+    StarteamVcs host = ((StarteamVcsAdapter)vcs).getStarteamVcs();
+    return file.isDirectory() || host == null || host.getLockOwner( file ) != StarteamStatusTable.NOT_LOCKED;
   }
 
-  protected void perform(Project project, final StarteamVcs activeVcs, final VirtualFile file) throws VcsException
+  protected void perform(Project project, final StarteamVcs activeVcs, final VirtualFile file,
+                         List<VirtualFile> touched) throws VcsException
   {
-    if( file.isDirectory() )
-    {
-      final VcsException[] errors = new VcsException[ 1 ];
-      final ProjectFileIndex fileIndex = ProjectRootManager.getInstance( project ).getFileIndex();
-
-      //-----------------------------------------------------------------------
-      //  Iterate over the diferctory structure starting from the given package
-      //  root, and unlock each file.
-      //  NB: an exception is thrown only for the first failure.
-      //-----------------------------------------------------------------------
-      fileIndex.iterateContentUnderDirectory( file, new ContentIterator()
-        {
-          public boolean processFile( VirtualFile file )
-          {
-            if( !file.isDirectory() )
-            {
-              try { activeVcs.unlockFile( file.getPresentableUrl() ); }
-              catch( VcsException e ) { if( errors[ 0 ] != null ) errors[ 0 ] = e;  }
-            }
-            return true;
-          }
-        } );
-
-      if( errors[ 0 ] != null )
-        throw errors[ 0 ];
-    }
-    else
-      activeVcs.unlockFile( file.getPresentableUrl() );
+    LockAction.lockFiles( project, activeVcs, file, false, touched );
   }
 }
@@ -16,42 +16,109 @@
 
 package com.intellij.vcs.starteam.actions;
 
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlatformDataKeys;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
-import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.WindowManager;
 import com.intellij.vcs.starteam.StarteamBundle;
+import com.intellij.vcs.starteam.StarteamStatusTransitions;
 import com.intellij.vcs.starteam.StarteamVcs;
+import com.intellij.vcsUtil.VcsUtil;
 
 import java.io.IOException;
+import java.util.Collections;
 
 /**
+ * Reads anew the status of the selected files and, recursively and a folder
+ * at a time, of everything under the selected directories. Runs in the
+ * background, refreshing the view once, and reports the status transitions
+ * it has found; when there are none, only the status bar says so.
+ *
  * Created by IntelliJ IDEA.
  * User: lloix
  * Date: Sep 20, 2006
  * Time: 4:06:50 PM
  * To change this template use File | Settings | File Templates.
  */
-public class UpdateStatusAction extends BasicAction
+public class UpdateStatusAction extends AnAction
 {
-  protected String getActionName() {  return "UpdateStatus";  }
+  public void update(AnActionEvent e) {
+    super.update(e);
+    BasicAction.updateStarteamAction(e, null);
+  }
+
+  public void actionPerformed(AnActionEvent e) {
+    final Project project = e.getData(PlatformDataKeys.PROJECT);
+    final VirtualFile[] files = VcsUtil.getVirtualFiles(e);
+    if (project == null || files.length == 0) return;
+    final StarteamVcs host = (StarteamVcs)StarteamVcs.getInstance(project);
+    if (host == null) return;
+
+    ProgressManager.getInstance().run(new Task.Backgroundable(project, StarteamBundle.message("action.name.update.status"), true) {
+      private final StarteamStatusTransitions transitions = new StarteamStatusTransitions();
+      private VcsException error;
 
-  protected boolean isEnabled(Project project, AbstractVcs vcs, VirtualFile file) {
-    return true;
+      public void run(ProgressIndicator indicator) {
+        try {
+          host.refresh();
+          for (int i = 0; i < files.length; i++) {
+            indicator.checkCanceled();
+            indicator.setText(files[i].getPresentableUrl());
+            indicator.setFraction((double)i / files.length);
+            if (files[i].isDirectory()) {
+              host.updateStatusRecursively(files[i], transitions, indicator);
+            }
+            else {
+              updateFile(host, files[i], transitions);
+            }
+          }
+        }
+        catch (VcsException ex) {
+          error = ex;
+        }
+      }
+
+      public void onSuccess() {
+        if (!project.isDisposed()) {
+          VcsDirtyScopeManager.getInstance(project).filePathsDirty(transitions.getChangedFiles(), Collections.<FilePath>emptyList());
+        }
+        if (error != null) {
+          Messages.showMessageDialog(project, error.getMessage(), StarteamBundle.message("message.title.action.error"), Messages.getErrorIcon());
+          return;
+        }
+
+        String message = StarteamBundle.message("message.text.update.status.summary", transitions.getFileCount(),
+                                                transitions.getFolderCount(), transitions.getChangedFiles().size());
+        if (transitions.getChangedFiles().isEmpty()) {
+          StatusBar statusBar = WindowManager.getInstance().getStatusBar(project);
+          if (statusBar != null) statusBar.setInfo(message);
+          return;
+        }
+        Messages.showMessageDialog(project, message + "\n" + transitions.getSummary(),
+                                   StarteamBundle.message("message.title.update.status"), Messages.getInformationIcon());
+      }
+    });
   }
 
-  protected void perform( final Project project, StarteamVcs activeVcs, VirtualFile file )
-  {
-    try{
-      activeVcs.refresh();
-      activeVcs.updateStatus( file );
-    }
-    catch(VcsException ex){
-      Messages.showMessageDialog(project, ex.getMessage(), StarteamBundle.message("message.title.action.error"), Messages.getErrorIcon());
+  private static void updateFile(StarteamVcs host, VirtualFile file, StarteamStatusTransitions transitions) throws VcsException {
+    int id = host.getPathTable().find(file.getPath());
+    int before = host.getStatusTable().getStatus(id);
+    try {
+      host.updateStatus(file);
     }
-    catch(IOException ex){
-      Messages.showMessageDialog(project, ex.getMessage(), StarteamBundle.message("message.title.action.error"), Messages.getErrorIcon());
+    catch (IOException ex) {
+      throw new VcsException(ex);
     }
+    transitions.record(file.getPath(), before, host.getStatusTable().getStatus(host.getPathTable().find(file.getPath())));
   }
 }
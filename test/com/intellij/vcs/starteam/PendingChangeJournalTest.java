@@ -0,0 +1,108 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class PendingChangeJournalTest extends TestCase
+{
+  private File myDir;
+  private File myJournalFile;
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory( "starteam", "journal" );
+    myJournalFile = new File( myDir, "test.journal" );
+  }
+
+  protected void tearDown() throws Exception
+  {
+    FileUtil.delete( myDir );
+    super.tearDown();
+  }
+
+  /**
+   * A rename committed after the last save and compacted away must not come
+   * back from the workspace file after a crash.
+   */
+  public void testCrashAfterCompaction() throws IOException
+  {
+    String oldName = path( "A.java" );
+    String newName = path( "B.java" );
+    touch( newName );
+
+    //  Session one: the workspace file had the rename, the rename is then
+    //  committed and the journal compacted before the next save.
+    PendingChangeStore store = newStore();
+    store.putRenamed( false, newName, oldName );
+    store.attachJournal( new PendingChangeJournal( myJournalFile, store ) );
+    store.removeRenamed( false, newName );
+    store.compactJournal();
+    store.detachJournal();
+
+    //  Crash. Session two starts from the stale workspace file.
+    PendingChangeStore restored = newStore();
+    restored.putRenamed( false, newName, oldName );
+    new PendingChangeJournal( myJournalFile, restored ).replay();
+
+    assertNull( restored.getRenamedFrom( false, newName ) );
+  }
+
+  public void testReplayRestoresChangesAfterCompaction() throws IOException
+  {
+    String added = path( "New.java" );
+    String removed = path( "Gone.java" );
+    touch( added );
+
+    PendingChangeStore store = newStore();
+    store.attachJournal( new PendingChangeJournal( myJournalFile, store ) );
+    store.addNewFile( added );
+    store.compactJournal();
+    store.addRemovedFile( removed );
+    store.detachJournal();
+
+    PendingChangeStore restored = newStore();
+    new PendingChangeJournal( myJournalFile, restored ).replay();
+
+    assertTrue( restored.isNewFile( added ) );
+    assertTrue( restored.isRemovedFile( removed ) );
+  }
+
+  public void testReplayDropsWhatTheDiskContradicts() throws IOException
+  {
+    String added = path( "New.java" );
+    String removed = path( "Back.java" );
+    touch( removed );
+
+    PendingChangeStore store = newStore();
+    store.attachJournal( new PendingChangeJournal( myJournalFile, store ) );
+    store.addNewFile( added );
+    store.addRemovedFile( removed );
+    store.detachJournal();
+
+    PendingChangeStore restored = newStore();
+    new PendingChangeJournal( myJournalFile, restored ).replay();
+
+    assertFalse( restored.isNewFile( added ) );
+    assertFalse( restored.isRemovedFile( removed ) );
+  }
+
+  private static PendingChangeStore newStore()
+  {
+    return new PendingChangeStore( new PathTable( SystemInfo.isFileSystemCaseSensitive ) );
+  }
+
+  private String path( String name )
+  {
+    return new File( myDir, name ).getPath();
+  }
+
+  private static void touch( String path ) throws IOException
+  {
+    assertTrue( new File( path ).createNewFile() );
+  }
+}
@@ -0,0 +1,161 @@
+package com.intellij.vcs.starteam;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.starbase.starteam.File;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The SDK items can not be made without a server, so the file agent is given
+ * the key of the content directly and the items passed around are null.
+ */
+public class StarteamContentSourcesTest extends TestCase
+{
+  private static final String KEY = "42/3";
+
+  private java.io.File myRoot;
+  private ServerStandIn myServer;
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory( "starteam", "agent" );
+    myServer = new ServerStandIn();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    FileUtil.delete( myRoot );
+    super.tearDown();
+  }
+
+  public void testAgentHit() throws Exception
+  {
+    store( KEY, "from agent" );
+    StarteamContentSources sources = new StarteamContentSources( new KeyedAgent( myRoot, KEY ), myServer );
+
+    assertEquals( "from agent", checkoutToStream( sources ) );
+    assertEquals( 0, myServer.calls );
+    assertTrue( sources.getStatistics(), sources.getStatistics().contains( ": 1 served (0K in " ) );
+    assertTrue( sources.getStatistics(), sources.getStatistics().contains( "server: 0 served" ) );
+  }
+
+  public void testAgentMissFallsBackToServer() throws Exception
+  {
+    StarteamContentSources sources = new StarteamContentSources( new KeyedAgent( myRoot, KEY ), myServer );
+
+    assertEquals( "from server", checkoutToStream( sources ) );
+    assertEquals( 1, myServer.calls );
+    String stats = sources.getStatistics();
+    assertTrue( stats, stats.startsWith( "file agent " ) );
+    assertTrue( stats, stats.contains( "0 served (0K in 0ms), 1 missed, 0 failed; server: 1 served" ) );
+  }
+
+  public void testAgentFailureFallsBackToServer() throws Exception
+  {
+    StarteamContentSources sources = new StarteamContentSources( new FailingAgent(), myServer );
+
+    assertEquals( "from server", checkoutToStream( sources ) );
+    assertEquals( 1, myServer.calls );
+    assertTrue( sources.getStatistics(), sources.getStatistics().contains( "0 missed, 1 failed; server: 1 served" ) );
+  }
+
+  public void testCheckoutToTarget() throws Exception
+  {
+    store( KEY, "from agent" );
+    StarteamContentSources sources = new StarteamContentSources( new KeyedAgent( myRoot, KEY ), myServer );
+
+    java.io.File target = new java.io.File( myRoot, "Target.java" );
+    sources.checkout( null, target );
+    assertEquals( "from agent", new String( FileUtil.loadFileBytes( target ), "UTF-8" ) );
+    assertEquals( 0, myServer.calls );
+  }
+
+  public void testServerFailureIsReported() throws Exception
+  {
+    myServer.fail = true;
+    StarteamContentSources sources = new StarteamContentSources( new KeyedAgent( myRoot, KEY ), myServer );
+
+    try
+    {
+      checkoutToStream( sources );
+      fail( "the last source's failure is the caller's" );
+    }
+    catch( IOException e )
+    {
+      assertTrue( sources.getStatistics(), sources.getStatistics().contains( "server: 0 served (0K in 0ms), 0 missed, 1 failed" ) );
+    }
+  }
+
+  private void store( String key, String content ) throws IOException
+  {
+    java.io.File file = new java.io.File( myRoot, key );
+    assertTrue( file.getParentFile().mkdirs() );
+    FileUtil.writeToFile( file, content.getBytes( "UTF-8" ) );
+  }
+
+  private static String checkoutToStream( StarteamContentSources sources ) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sources.checkoutToStream( null, out );
+    return out.toString( "UTF-8" );
+  }
+
+  private static class KeyedAgent extends StarteamContentSources.FileAgentSource
+  {
+    private final String key;
+
+    private KeyedAgent( java.io.File root, String key )
+    {
+      super( root );
+      this.key = key;
+    }
+
+    String keyOf( File file )  {  return key;  }
+  }
+
+  private static class FailingAgent implements StarteamContentSource
+  {
+    public String getName()  {  return "failing agent";  }
+
+    public boolean checkout( File file, @Nullable java.io.File target ) throws Exception
+    {
+      throw new IOException( "agent is down" );
+    }
+
+    public boolean checkoutToStream( File file, OutputStream out ) throws Exception
+    {
+      throw new IOException( "agent is down" );
+    }
+  }
+
+  private static class ServerStandIn implements StarteamContentSource
+  {
+    private int calls;
+    private boolean fail;
+
+    public String getName()  {  return "server";  }
+
+    public boolean checkout( File file, @Nullable java.io.File target ) throws Exception
+    {
+      calls++;
+      if( fail )
+        throw new IOException( "server is down" );
+      FileUtil.writeToFile( target, "from server".getBytes( "UTF-8" ) );
+      return true;
+    }
+
+    public boolean checkoutToStream( File file, OutputStream out ) throws Exception
+    {
+      calls++;
+      if( fail )
+        throw new IOException( "server is down" );
+      out.write( "from server".getBytes( "UTF-8" ) );
+      return true;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.intellij.vcs.starteam;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Drives the subscriber through the in-process broker, running the handling
+ * on the publishing thread, and records what it does to the host.
+ */
+public class StarteamEventSubscriberTest extends TestCase
+{
+  private static final String ROOT = new java.io.File( "/work/view" ).getPath();
+  private static final String OTHER_ROOT = new java.io.File( "/work/other" ).getPath();
+
+  private static final Executor DIRECT = new Executor()
+  {
+    public void execute( Runnable command )  {  command.run();  }
+  };
+
+  private StarteamLocalEventBroker.Registry myRegistry;
+  private StarteamLocalEventBroker myBroker;
+  private RecordingTarget myTarget;
+  private StarteamEventSubscriber mySubscriber;
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    myRegistry = new StarteamLocalEventBroker.Registry();
+    myBroker = myRegistry.forView( "host:49201/1" );
+    myTarget = new RecordingTarget();
+    mySubscriber = new StarteamEventSubscriber( myTarget, DIRECT );
+    assertTrue( myBroker.subscribe( mySubscriber ) );
+  }
+
+  protected void tearDown() throws Exception
+  {
+    myBroker.unsubscribe( mySubscriber );
+    super.tearDown();
+  }
+
+  public void testFileAdded()
+  {
+    myBroker.publish( StarteamEventSource.Kind.ADDED, false, null, path( "src", "A.java" ) );
+
+    assertEquals( list( "status " + path( "src", "A.java" ), "items " + path( "src" ), "file " + path( "src", "A.java" ) ),
+                  myTarget.calls );
+  }
+
+  public void testFileChanged()
+  {
+    myBroker.publish( StarteamEventSource.Kind.CHANGED, false, path( "src", "A.java" ), path( "src", "A.java" ) );
+
+    assertEquals( list( "status " + path( "src", "A.java" ), "items " + path( "src" ), "file " + path( "src", "A.java" ) ),
+                  myTarget.calls );
+  }
+
+  public void testFileMoved()
+  {
+    myBroker.publish( StarteamEventSource.Kind.MOVED, false, path( "src", "A.java" ), path( "lib", "A.java" ) );
+
+    assertEquals( list( "status " + path( "src", "A.java" ), "items " + path( "src" ),
+                        "status " + path( "lib", "A.java" ), "items " + path( "lib" ),
+                        "file " + path( "src", "A.java" ), "file " + path( "lib", "A.java" ) ),
+                  myTarget.calls );
+  }
+
+  public void testFolderMoved()
+  {
+    myBroker.publish( StarteamEventSource.Kind.MOVED, true, path( "src", "old" ), path( "src", "new" ) );
+
+    assertEquals( list( "forget " + path( "src", "old" ), "items " + path( "src" ),
+                        "forget " + path( "src", "new" ), "items " + path( "src" ),
+                        "dir " + path( "src", "old" ), "dir " + path( "src", "new" ) ),
+                  myTarget.calls );
+  }
+
+  public void testFolderRemoved()
+  {
+    myBroker.publish( StarteamEventSource.Kind.REMOVED, true, path( "src" ), null );
+
+    assertEquals( list( "forget " + path( "src" ), "items " + ROOT, "dir " + path( "src" ) ), myTarget.calls );
+  }
+
+  public void testFileRemoved()
+  {
+    myBroker.publish( StarteamEventSource.Kind.REMOVED, false, path( "src", "A.java" ), null );
+
+    assertEquals( list( "status " + path( "src", "A.java" ), "items " + path( "src" ), "file " + path( "src", "A.java" ) ),
+                  myTarget.calls );
+  }
+
+  public void testMovedOutOfViewOnlyOldPath()
+  {
+    String outside = new java.io.File( OTHER_ROOT, "A.java" ).getPath();
+    myBroker.publish( StarteamEventSource.Kind.MOVED, false, path( "src", "A.java" ), outside );
+
+    assertEquals( list( "status " + path( "src", "A.java" ), "items " + path( "src" ), "file " + path( "src", "A.java" ) ),
+                  myTarget.calls );
+  }
+
+  public void testOtherViewEventsIgnored()
+  {
+    //  Another view's broker does not reach the subscriber at all...
+    myRegistry.forView( "host:49201/2" ).publish( StarteamEventSource.Kind.CHANGED, false, path( "src", "A.java" ), path( "src", "A.java" ) );
+    assertTrue( myTarget.calls.isEmpty() );
+
+    //  ...and other views' paths coming through the same broker are dropped.
+    String outside = new java.io.File( OTHER_ROOT, "A.java" ).getPath();
+    myBroker.publish( StarteamEventSource.Kind.ADDED, false, null, outside );
+    myBroker.publish( StarteamEventSource.Kind.CHANGED, false, outside, outside );
+    myBroker.publish( StarteamEventSource.Kind.REMOVED, true, OTHER_ROOT, null );
+    assertTrue( myTarget.calls.isEmpty() );
+  }
+
+  public void testDisposedProjectIgnored()
+  {
+    myTarget.disposed = true;
+    myBroker.publish( StarteamEventSource.Kind.CHANGED, false, path( "src", "A.java" ), path( "src", "A.java" ) );
+
+    assertTrue( myTarget.calls.isEmpty() );
+  }
+
+  private static String path( String... names )
+  {
+    java.io.File file = new java.io.File( ROOT );
+    for( String name : names )
+      file = new java.io.File( file, name );
+    return file.getPath();
+  }
+
+  private static List<String> list( String... calls )
+  {
+    List<String> list = new ArrayList<String>();
+    for( String call : calls )
+      list.add( call );
+    return list;
+  }
+
+  private static class RecordingTarget implements StarteamEventSubscriber.Target
+  {
+    private final List<String> calls = new ArrayList<String>();
+    private boolean disposed;
+
+    public boolean isDisposed()  {  return disposed;  }
+
+    public boolean isUnderRootFolder( String path )
+    {
+      return path.equals( ROOT ) || path.startsWith( ROOT + java.io.File.separator );
+    }
+
+    public void forgetFolder( String path )                 {  calls.add( "forget " + path );  }
+    public void invalidateStatus( String path )             {  calls.add( "status " + path );  }
+    public void invalidateFolderItems( String folderPath )  {  calls.add( "items " + folderPath );  }
+    public void fileDirty( String path )                    {  calls.add( "file " + path );  }
+    public void dirDirtyRecursively( String path )          {  calls.add( "dir " + path );  }
+  }
+}
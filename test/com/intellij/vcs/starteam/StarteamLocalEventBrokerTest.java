@@ -0,0 +1,82 @@
+package com.intellij.vcs.starteam;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StarteamLocalEventBrokerTest extends TestCase
+{
+  private StarteamLocalEventBroker.Registry myRegistry;
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    myRegistry = new StarteamLocalEventBroker.Registry();
+  }
+
+  public void testSameViewSameBroker()
+  {
+    assertSame( myRegistry.forView( "host:49201/1" ), myRegistry.forView( "host:49201/1" ) );
+    assertNotSame( myRegistry.forView( "host:49201/1" ), myRegistry.forView( "host:49201/2" ) );
+  }
+
+  public void testPublishReachesSubscribers()
+  {
+    StarteamLocalEventBroker broker = myRegistry.forView( "host:49201/1" );
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    assertTrue( broker.subscribe( first ) );
+    assertTrue( broker.subscribe( second ) );
+
+    broker.publish( StarteamEventSource.Kind.CHANGED, false, "/p/a.txt", "/p/a.txt" );
+
+    assertEquals( 1, first.events.size() );
+    assertEquals( "CHANGED /p/a.txt -> /p/a.txt", first.events.get( 0 ) );
+    assertEquals( first.events, second.events );
+  }
+
+  public void testUnsubscribeStopsDelivery()
+  {
+    StarteamLocalEventBroker broker = myRegistry.forView( "host:49201/1" );
+    RecordingListener stays = new RecordingListener();
+    RecordingListener leaves = new RecordingListener();
+    broker.subscribe( stays );
+    broker.subscribe( leaves );
+    broker.unsubscribe( leaves );
+
+    broker.publish( StarteamEventSource.Kind.REMOVED, true, "/p/dir", null );
+
+    assertEquals( 1, stays.events.size() );
+    assertTrue( leaves.events.isEmpty() );
+  }
+
+  public void testBrokerReleasedWithLastListener()
+  {
+    StarteamLocalEventBroker broker = myRegistry.forView( "host:49201/1" );
+    RecordingListener listener = new RecordingListener();
+    broker.subscribe( listener );
+    assertEquals( 1, myRegistry.size() );
+
+    broker.unsubscribe( listener );
+    assertEquals( 0, myRegistry.size() );
+    assertNotSame( broker, myRegistry.forView( "host:49201/1" ) );
+  }
+
+  public void testRegistriesAreIndependent()
+  {
+    StarteamLocalEventBroker.Registry other = new StarteamLocalEventBroker.Registry();
+    assertNotSame( myRegistry.forView( "host:49201/1" ), other.forView( "host:49201/1" ) );
+  }
+
+  private static class RecordingListener implements StarteamEventSource.Listener
+  {
+    private final List<String> events = new ArrayList<String>();
+
+    public void itemEvent( StarteamEventSource.Kind kind, boolean isDir, @Nullable String oldPath, @Nullable String newPath )
+    {
+      events.add( kind + " " + oldPath + " -> " + newPath );
+    }
+  }
+}